@@ -0,0 +1,118 @@
+package nl.tudelft.sem.roomapp.config;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import nl.tudelft.sem.roomapp.handlers.AdminValidator;
+import nl.tudelft.sem.roomapp.handlers.AuthenticationValidator;
+import nl.tudelft.sem.roomapp.handlers.CachingAdminValidator;
+import nl.tudelft.sem.roomapp.handlers.RightsValidator;
+import nl.tudelft.sem.roomapp.services.TokenCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Requires a token on the room search end points, when auth.required is set.
+ * Searches only need an authenticated user, so their token is checked by the
+ * AuthenticationValidator alone. The end points called by the Booking service
+ * change the availability the searches answer with, so they need either the
+ * service token of auth.service-token or a token accepted by the whole
+ * AdminValidator chain. Both validators are decorated with a
+ * {@link CachingAdminValidator}, so only the first request with a token pays
+ * for the calls to the User service.
+ */
+@Configuration
+public class AuthenticationConfiguration implements WebMvcConfigurer {
+
+    private static final String BEARER = "Bearer ";
+    private static final String[] CALLBACKS = {"/search/availability/invalidate",
+        "/search/bookings/events", "/search/bookings/sync"};
+
+    @Autowired
+    private transient TokenCache tokenCache;
+    @Autowired
+    private transient RestTemplate restTemplate;
+    @Value("${auth.required:false}")
+    private transient boolean required;
+    @Value("${auth.service-token:}")
+    private transient String serviceToken;
+
+    /**
+     * The AuthenticationValidator and RightsValidator chain, behind the token cache.
+     *
+     * @return the first validator of the chain
+     */
+    @Bean
+    @Primary
+    public AdminValidator adminValidator() {
+        AdminValidator chain = new AuthenticationValidator(restTemplate);
+        chain.setNext(new RightsValidator());
+        return new CachingAdminValidator("admin", chain, tokenCache);
+    }
+
+    /**
+     * The AuthenticationValidator alone, behind the token cache.
+     *
+     * @return the validator of authenticated users
+     */
+    @Bean
+    public AdminValidator authenticationValidator() {
+        return new CachingAdminValidator("authenticated",
+                new AuthenticationValidator(restTemplate), tokenCache);
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(new TokenInterceptor(false))
+                .addPathPatterns("/search/**")
+                .excludePathPatterns(CALLBACKS);
+        registry.addInterceptor(new TokenInterceptor(true))
+                .addPathPatterns(CALLBACKS);
+    }
+
+    private boolean isServiceToken(String token) {
+        return !serviceToken.isEmpty() && MessageDigest.isEqual(
+                serviceToken.getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private final class TokenInterceptor implements HandlerInterceptor {
+
+        private final transient boolean callback;
+
+        private TokenInterceptor(boolean callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean preHandle(HttpServletRequest request, HttpServletResponse response,
+                                 Object handler) {
+            if (!required) {
+                return true;
+            }
+            String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+            if (authorization == null || !authorization.startsWith(BEARER)) {
+                throw new ResponseStatusException(HttpStatus.UNAUTHORIZED);
+            }
+            String token = authorization.substring(BEARER.length());
+            boolean accepted = callback
+                    ? isServiceToken(token) || adminValidator().handle(token)
+                    : authenticationValidator().handle(token);
+            if (!accepted) {
+                throw new ResponseStatusException(HttpStatus.UNAUTHORIZED);
+            }
+            return true;
+        }
+    }
+}
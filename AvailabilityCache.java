@@ -0,0 +1,234 @@
+package nl.tudelft.sem.roomapp.services;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Bounded in-memory cache of the availability of rooms during a time slot,
+ * as reported by the Booking service. Entries expire after a configurable
+ * time to live and the least recently used entries are evicted when the
+ * cache is full. The entries are indexed by room, and every room has its own
+ * version of its booking state: an invalidation, which is how the Booking
+ * service reports a booking change, only touches the entries and the version
+ * of the room that changed. The hit, miss and eviction counters and the size
+ * of the cache are exposed as Micrometer meters.
+ */
+@Service
+public class AvailabilityCache {
+
+    private final transient long timeToLiveMillis;
+    private final transient int maxSize;
+    private final transient Map<Key, Entry> entries;
+    private final transient Map<Integer, Set<Key>> keysByRoom = new HashMap<>();
+    private final transient Map<Integer, Long> roomVersions = new HashMap<>();
+
+    private transient long hits;
+    private transient long misses;
+    private transient long evictions;
+    private transient long version;
+    private transient long clearedAt;
+
+    /**
+     * Create a new availability cache.
+     *
+     * @param timeToLiveSeconds the number of seconds an entry stays valid
+     * @param maxSize           the maximum number of entries kept in the cache
+     * @param meterRegistry     the registry to expose the statistics of the cache in
+     */
+    public AvailabilityCache(
+            @Value("${availability.cache.ttl-seconds:10}") long timeToLiveSeconds,
+            @Value("${availability.cache.max-size:10000}") int maxSize,
+            MeterRegistry meterRegistry) {
+        this.timeToLiveMillis = timeToLiveSeconds * 1000;
+        this.maxSize = maxSize;
+        // An access ordered map keeps the least recently used entry first
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() > AvailabilityCache.this.maxSize) {
+                    evictions++;
+                    unindex(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+        FunctionCounter.builder("room.search.availability.cache.hits", this,
+                cache -> cache.getStatistics().get("hits")).register(meterRegistry);
+        FunctionCounter.builder("room.search.availability.cache.misses", this,
+                cache -> cache.getStatistics().get("misses")).register(meterRegistry);
+        FunctionCounter.builder("room.search.availability.cache.evictions", this,
+                cache -> cache.getStatistics().get("evictions")).register(meterRegistry);
+        meterRegistry.gauge("room.search.availability.cache.size", this,
+                cache -> cache.getStatistics().get("size"));
+    }
+
+    /**
+     * Look up whether a room is available during the given time slot.
+     *
+     * @param roomId   the ID of the room
+     * @param startsAt the start of the time slot
+     * @param endsAt   the end of the time slot
+     * @return the cached availability, or null if it is not (or no longer) cached
+     */
+    public synchronized Boolean get(int roomId, LocalDateTime startsAt, LocalDateTime endsAt) {
+        Key key = new Key(roomId, startsAt, endsAt);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.expiresAt < System.currentTimeMillis()) {
+            if (entry != null) {
+                entries.remove(key);
+                unindex(key);
+            }
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.available;
+    }
+
+    /**
+     * Store the availability of a room during the given time slot, unless a
+     * booking change of the room was reported since the availability was asked
+     * for. The answer of a call that was in flight during an invalidation of the
+     * room may already be outdated, so it is not stored.
+     *
+     * @param roomId    the ID of the room
+     * @param startsAt  the start of the time slot
+     * @param endsAt    the end of the time slot
+     * @param available whether the room is available during the time slot
+     * @param version   the version of the room before the availability was asked for
+     */
+    public synchronized void put(int roomId, LocalDateTime startsAt, LocalDateTime endsAt,
+                                 boolean available, long version) {
+        if (version != getVersion(roomId)) {
+            return;
+        }
+        Key key = new Key(roomId, startsAt, endsAt);
+        entries.put(key, new Entry(available, System.currentTimeMillis() + timeToLiveMillis));
+        keysByRoom.computeIfAbsent(roomId, id -> new HashSet<>()).add(key);
+    }
+
+    /**
+     * Remove the cached availability of a room for every time slot that
+     * overlaps with the given period, for example because a booking was made.
+     *
+     * @param roomId   the ID of the room
+     * @param startsAt the start of the period
+     * @param endsAt   the end of the period
+     */
+    public synchronized void invalidate(int roomId, LocalDateTime startsAt,
+                                        LocalDateTime endsAt) {
+        version++;
+        roomVersions.put(roomId, version);
+        Set<Key> keys = keysByRoom.get(roomId);
+        if (keys == null) {
+            return;
+        }
+        Iterator<Key> iterator = keys.iterator();
+        while (iterator.hasNext()) {
+            Key key = iterator.next();
+            if (key.startsAt.isBefore(endsAt) && startsAt.isBefore(key.endsAt)) {
+                entries.remove(key);
+                iterator.remove();
+            }
+        }
+        if (keys.isEmpty()) {
+            keysByRoom.remove(roomId);
+        }
+    }
+
+    /**
+     * Remove all cached availability.
+     */
+    public synchronized void invalidateAll() {
+        version++;
+        clearedAt = version;
+        roomVersions.clear();
+        entries.clear();
+        keysByRoom.clear();
+    }
+
+    /**
+     * Get the version of the booking state of a single room, which only
+     * changes when a booking change of that room, or of all rooms, is reported.
+     *
+     * @param roomId the ID of the room
+     * @return the current version of the room
+     */
+    public synchronized long getVersion(int roomId) {
+        return roomVersions.getOrDefault(roomId, clearedAt);
+    }
+
+    /**
+     * Get the hit, miss and eviction counters and the current size of the cache.
+     *
+     * @return a map from the name of each statistic to its value
+     */
+    public synchronized Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new HashMap<>();
+        statistics.put("hits", hits);
+        statistics.put("misses", misses);
+        statistics.put("evictions", evictions);
+        statistics.put("size", (long) entries.size());
+        return statistics;
+    }
+
+    private void unindex(Key key) {
+        Set<Key> keys = keysByRoom.get(key.roomId);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            keysByRoom.remove(key.roomId);
+        }
+    }
+
+    private static final class Key {
+        private final transient int roomId;
+        private final transient LocalDateTime startsAt;
+        private final transient LocalDateTime endsAt;
+
+        private Key(int roomId, LocalDateTime startsAt, LocalDateTime endsAt) {
+            this.roomId = roomId;
+            this.startsAt = startsAt;
+            this.endsAt = endsAt;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return roomId == other.roomId && startsAt.equals(other.startsAt)
+                    && endsAt.equals(other.endsAt);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(roomId, startsAt, endsAt);
+        }
+    }
+
+    private static final class Entry {
+        private final transient boolean available;
+        private final transient long expiresAt;
+
+        private Entry(boolean available, long expiresAt) {
+            this.available = available;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
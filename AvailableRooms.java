@@ -0,0 +1,251 @@
+package nl.tudelft.sem.roomapp.models;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * The IDs of the available rooms as returned by the Booking service.
+ * The IDs are kept in an array of ints that is sorted on the first lookup,
+ * so they are stored without boxing and in space proportional to their number.
+ * An instance belongs to a single search and is not thread safe.
+ */
+public class AvailableRooms {
+
+    private static final String KEY = "availableRooms";
+    private static final String NO_LIST = "No list of room IDs in response";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private transient int[] ids;
+    private transient int size;
+    private transient boolean sorted = true;
+
+    public AvailableRooms() {
+        this.ids = new int[8];
+    }
+
+    /**
+     * Decode a response of the Booking service while it is being read.
+     * Both JSON ({"availableRooms":[1,2]}) and the map notation
+     * ({availableRooms=[1, 2]}) are accepted, with any whitespace and other keys.
+     *
+     * @param body the body of the response
+     * @return the IDs of the available rooms
+     * @throws IllegalArgumentException if the body does not contain a list of valid IDs
+     */
+    public static AvailableRooms read(InputStream body) {
+        try {
+            PushbackInputStream input = new PushbackInputStream(body, 2);
+            int first = skipWhitespace(input);
+            int second = skipWhitespace(input);
+            if (first != '{' || second == -1) {
+                throw new IllegalArgumentException(NO_LIST);
+            }
+            input.unread(second);
+            input.unread(first);
+            // The keys of a JSON object are quoted, those of the map notation are not
+            return second == '"' ? readJson(input) : readMap(input);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decode a response of the Booking service.
+     *
+     * @param body the body of the response
+     * @return the IDs of the available rooms
+     * @see #read(InputStream)
+     */
+    public static AvailableRooms parse(byte[] body) {
+        return read(new ByteArrayInputStream(body));
+    }
+
+    public boolean contains(int id) {
+        normalize();
+        return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+
+    /**
+     * Add an ID.
+     *
+     * @param id the ID of an available room
+     */
+    public void add(int id) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        if (size > 0 && ids[size - 1] >= id) {
+            sorted = false;
+        }
+        ids[size++] = id;
+    }
+
+    /**
+     * Add all IDs of another set of available rooms.
+     *
+     * @param other the IDs to add
+     */
+    public void addAll(AvailableRooms other) {
+        if (other.size == 0) {
+            return;
+        }
+        if (size + other.size > ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(size * 2, size + other.size));
+        }
+        if (!other.sorted || size > 0 && ids[size - 1] >= other.ids[0]) {
+            sorted = false;
+        }
+        System.arraycopy(other.ids, 0, ids, size, other.size);
+        size += other.size;
+    }
+
+    public int size() {
+        normalize();
+        return size;
+    }
+
+    /**
+     * Sort the IDs and drop the duplicates, if any were added out of order.
+     */
+    private void normalize() {
+        if (sorted) {
+            return;
+        }
+        Arrays.sort(ids, 0, size);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || ids[i] != ids[unique - 1]) {
+                ids[unique++] = ids[i];
+            }
+        }
+        size = unique;
+        sorted = true;
+    }
+
+    private static AvailableRooms readJson(InputStream body) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+            parser.nextToken();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (!KEY.equals(key)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                if (value != JsonToken.START_ARRAY) {
+                    throw new IllegalArgumentException(NO_LIST);
+                }
+                AvailableRooms availableRooms = new AvailableRooms();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    if (parser.currentToken() != JsonToken.VALUE_NUMBER_INT
+                            || parser.getNumberType() != JsonParser.NumberType.INT
+                            || parser.getIntValue() < 0) {
+                        throw new IllegalArgumentException("Invalid room ID '"
+                                + parser.getText() + "' in list of room IDs");
+                    }
+                    availableRooms.add(parser.getIntValue());
+                }
+                return availableRooms;
+            }
+            throw new IllegalArgumentException(NO_LIST);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Malformed response of the Booking service", e);
+        }
+    }
+
+    /**
+     * Decode the map notation, {key=value, availableRooms=[1, 2]}, in which the
+     * values of the other keys are skipped.
+     */
+    private static AvailableRooms readMap(InputStream body) throws IOException {
+        // Skip the opening brace
+        body.read();
+        StringBuilder key = new StringBuilder();
+        int c = body.read();
+        while (c != -1 && c != '}') {
+            if (c != '=') {
+                key.append((char) c);
+            } else if (KEY.equals(key.toString().trim())) {
+                return readIds(body);
+            } else {
+                skipValue(body);
+                key.setLength(0);
+            }
+            c = body.read();
+        }
+        throw new IllegalArgumentException(NO_LIST);
+    }
+
+    private static AvailableRooms readIds(InputStream body) throws IOException {
+        if (skipWhitespace(body) != '[') {
+            throw new IllegalArgumentException(NO_LIST);
+        }
+        AvailableRooms availableRooms = new AvailableRooms();
+        long id = 0;
+        boolean inId = false;
+        int c = body.read();
+        while (c != ']') {
+            if (c >= '0' && c <= '9') {
+                id = id * 10 + (c - '0');
+                if (id > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Room ID out of range in list of room IDs");
+                }
+                inId = true;
+            } else if (c == ',' || Character.isWhitespace(c)) {
+                if (inId) {
+                    availableRooms.add((int) id);
+                    id = 0;
+                    inId = false;
+                }
+            } else if (c == -1) {
+                throw new IllegalArgumentException("Unterminated list of room IDs");
+            } else {
+                throw new IllegalArgumentException("Unexpected character '" + (char) c
+                        + "' in list of room IDs");
+            }
+            c = body.read();
+        }
+        if (inId) {
+            availableRooms.add((int) id);
+        }
+        return availableRooms;
+    }
+
+    /**
+     * Skip the value of a key in the map notation, up to and including the comma after it.
+     */
+    private static void skipValue(InputStream body) throws IOException {
+        int depth = 0;
+        int c = body.read();
+        while (depth > 0 || c != ',') {
+            if (c == '[' || c == '{') {
+                depth++;
+            } else if (c == ']' || c == '}') {
+                if (depth == 0) {
+                    // The end of the map, without the list of room IDs
+                    throw new IllegalArgumentException(NO_LIST);
+                }
+                depth--;
+            } else if (c == -1) {
+                throw new IllegalArgumentException(NO_LIST);
+            }
+            c = body.read();
+        }
+    }
+
+    private static int skipWhitespace(InputStream body) throws IOException {
+        int c = body.read();
+        while (c != -1 && Character.isWhitespace(c)) {
+            c = body.read();
+        }
+        return c;
+    }
+}
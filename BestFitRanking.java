@@ -0,0 +1,167 @@
+package nl.tudelft.sem.roomapp.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import nl.tudelft.sem.roomapp.models.Room;
+import nl.tudelft.sem.roomapp.repository.RoomCriteriaQuery;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Ranks rooms by how well they fit a search. A room fits better the fewer
+ * seats it has beyond the desired capacity, the more of the preferred
+ * equipment it has and if it is in the preferred building. The candidates
+ * are scored one chunk at a time, counting the equipment of the rooms of that
+ * chunk only, and kept in a {@link TopCandidates} heap bounded to the number
+ * of rooms asked for, so a search never holds all candidates in memory.
+ */
+@Service
+public class BestFitRanking {
+
+    @Autowired
+    private transient RoomCriteriaQuery roomCriteriaQuery;
+
+    @Value("${search.best-fit.equipment-weight:10}")
+    private transient long equipmentWeight;
+    @Value("${search.best-fit.building-weight:20}")
+    private transient long buildingWeight;
+
+    /**
+     * Score a chunk of rooms. Only the preferred equipment of the rooms
+     * of the chunk is counted.
+     *
+     * @param capacity           the desired capacity of the room
+     * @param preferredBuilding  the name of the preferred building, or null
+     * @param preferredEquipment the preferred equipment, or null
+     * @param chunk              the rooms to score
+     * @return the scored rooms, in the order of the chunk
+     */
+    public List<Candidate> score(Integer capacity, String preferredBuilding,
+                                 List<String> preferredEquipment, List<Room> chunk) {
+        List<Integer> roomIds = new ArrayList<>(chunk.size());
+        for (Room room : chunk) {
+            roomIds.add(room.getId());
+        }
+        Map<Integer, Long> equipmentCounts = preferredEquipment == null
+                || preferredEquipment.isEmpty() || roomIds.isEmpty()
+                ? Collections.emptyMap()
+                : roomCriteriaQuery.countEquipment(preferredEquipment, roomIds);
+        int desiredCapacity = capacity == null ? 0 : capacity;
+
+        List<Candidate> candidates = new ArrayList<>(chunk.size());
+        for (Room room : chunk) {
+            long score = room.getCapacity() - desiredCapacity;
+            score -= equipmentWeight * equipmentCounts.getOrDefault(room.getId(), 0L);
+            if (preferredBuilding != null
+                    && preferredBuilding.equals(room.getBuilding().getName())) {
+                score -= buildingWeight;
+            }
+            candidates.add(new Candidate(room, score));
+        }
+        return candidates;
+    }
+
+    /**
+     * A scored room. A lower score fits better, and rooms that fit equally
+     * well are ordered by ID, so the order is total.
+     */
+    public static final class Candidate implements Comparable<Candidate> {
+        private final transient Room room;
+        private final transient long score;
+
+        private Candidate(Room room, long score) {
+            this.room = room;
+            this.score = score;
+        }
+
+        public Room getRoom() {
+            return room;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int compared = Long.compare(score, other.score);
+            return compared == 0 ? Integer.compare(room.getId(), other.room.getId()) : compared;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Candidate && compareTo((Candidate) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(score) * 31 + room.getId();
+        }
+    }
+
+    /**
+     * The best candidates offered, bounded to a capacity. The heap keeps the
+     * worst kept candidate at its head, so a better candidate replaces it in
+     * O(log capacity). Candidates that fit as well as or better than the cutoff
+     * are ignored, so a next pass over the same rooms continues where the
+     * candidates of the previous pass ran out.
+     */
+    public static final class TopCandidates {
+        private final transient int capacity;
+        private final transient Candidate cutoff;
+        private final transient PriorityQueue<Candidate> worstFirst;
+        private transient boolean skipped;
+
+        /**
+         * Create an empty heap.
+         *
+         * @param capacity the maximum number of candidates kept
+         * @param cutoff   the last candidate of the previous pass, or null
+         */
+        public TopCandidates(int capacity, Candidate cutoff) {
+            this.capacity = capacity;
+            this.cutoff = cutoff;
+            this.worstFirst = new PriorityQueue<>(capacity, Collections.reverseOrder());
+        }
+
+        /**
+         * Keep a candidate if it is among the best offered so far.
+         *
+         * @param candidate the scored room
+         */
+        public void offer(Candidate candidate) {
+            if (cutoff != null && candidate.compareTo(cutoff) <= 0) {
+                return;
+            }
+            if (worstFirst.size() < capacity) {
+                worstFirst.add(candidate);
+                return;
+            }
+            skipped = true;
+            if (candidate.compareTo(worstFirst.peek()) < 0) {
+                worstFirst.poll();
+                worstFirst.add(candidate);
+            }
+        }
+
+        /**
+         * Whether a candidate after the cutoff was dropped because the heap was full.
+         *
+         * @return true if another pass can find more candidates
+         */
+        public boolean hasSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Get the kept candidates.
+         *
+         * @return the kept candidates, the best first
+         */
+        public List<Candidate> sorted() {
+            List<Candidate> sorted = new ArrayList<>(worstFirst);
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+}
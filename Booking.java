@@ -0,0 +1,42 @@
+package nl.tudelft.sem.roomapp.models;
+
+import java.time.LocalDateTime;
+
+/**
+ * A booking of a room as reported by the Booking service,
+ * kept by the calendar of the room search.
+ */
+public class Booking {
+
+    private int roomId;
+    private LocalDateTime startsAt;
+    private LocalDateTime endsAt;
+
+    public Booking() {
+    }
+
+    /**
+     * Create a booking.
+     *
+     * @param roomId   the ID of the booked room
+     * @param startsAt the start of the booking
+     * @param endsAt   the end of the booking
+     */
+    public Booking(int roomId, LocalDateTime startsAt, LocalDateTime endsAt) {
+        this.roomId = roomId;
+        this.startsAt = startsAt;
+        this.endsAt = endsAt;
+    }
+
+    public int getRoomId() {
+        return roomId;
+    }
+
+    public LocalDateTime getStartsAt() {
+        return startsAt;
+    }
+
+    public LocalDateTime getEndsAt() {
+        return endsAt;
+    }
+}
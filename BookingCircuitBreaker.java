@@ -0,0 +1,183 @@
+package nl.tudelft.sem.roomapp.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.Semaphore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Circuit breaker and bulkhead around the calls to the Booking service.
+ * After a number of consecutive failures the breaker opens and calls are
+ * rejected right away. Once the open period has passed, a single trial call
+ * is let through: if it succeeds the breaker closes again, otherwise it stays
+ * open for another period. Every call is granted a permit, so the late answer
+ * of a call made before the breaker opened or closed is recognized and does
+ * not change its state. The bulkhead limits the number of calls in flight,
+ * so a slow Booking service cannot take up all request threads.
+ */
+@Service
+public class BookingCircuitBreaker {
+
+    /**
+     * The states of the breaker, exposed as the ordinal in the state gauge.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private transient int failureThreshold;
+    private transient long openMillis;
+    private final transient Semaphore bulkhead;
+    private final transient Counter rejected;
+
+    private transient State state = State.CLOSED;
+    private transient int failures;
+    private transient long openedAt;
+    private transient boolean trialInFlight;
+    private transient long generation;
+
+    /**
+     * Create the breaker and register its meters.
+     *
+     * @param failureThreshold the number of consecutive failures that opens the breaker
+     * @param openSeconds      the number of seconds the breaker stays open
+     * @param maxConcurrent    the maximum number of calls in flight
+     * @param meterRegistry    the registry to expose the state of the breaker in
+     */
+    public BookingCircuitBreaker(
+            @Value("${booking.breaker.failure-threshold:5}") int failureThreshold,
+            @Value("${booking.breaker.open-seconds:30}") long openSeconds,
+            @Value("${booking.bulkhead.max-concurrent:20}") int maxConcurrent,
+            MeterRegistry meterRegistry) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openSeconds * 1000;
+        this.bulkhead = new Semaphore(maxConcurrent);
+        this.rejected = meterRegistry.counter("room.search.booking.breaker.rejected");
+        meterRegistry.gauge("room.search.booking.breaker.state", this,
+                breaker -> breaker.getState().ordinal());
+        meterRegistry.gauge("room.search.booking.bulkhead.available", bulkhead,
+                Semaphore::availablePermits);
+    }
+
+    /**
+     * Ask permission to call the Booking service. Every granted call must be
+     * followed by either {@link #recordSuccess} or {@link #recordFailure}
+     * with the permit it was granted.
+     *
+     * @return the permit of the call, or null if the breaker is open
+     *         or the bulkhead is full
+     */
+    public Permit tryAcquire() {
+        Permit permit;
+        synchronized (this) {
+            if (state == State.OPEN) {
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    rejected.increment();
+                    return null;
+                }
+                state = State.HALF_OPEN;
+            }
+            if (state == State.HALF_OPEN) {
+                if (trialInFlight) {
+                    rejected.increment();
+                    return null;
+                }
+                trialInFlight = true;
+            }
+            permit = new Permit(state == State.HALF_OPEN, generation);
+        }
+        if (!bulkhead.tryAcquire()) {
+            synchronized (this) {
+                if (permit.trial && permit.generation == generation) {
+                    trialInFlight = false;
+                }
+            }
+            rejected.increment();
+            return null;
+        }
+        return permit;
+    }
+
+    /**
+     * Record a successful call and give back its place in the bulkhead.
+     * Only the trial call closes the breaker, and a call that was granted
+     * before the breaker last opened or closed does not change its state.
+     *
+     * @param permit the permit the call was granted
+     */
+    public void recordSuccess(Permit permit) {
+        synchronized (this) {
+            if (permit.generation == generation) {
+                if (permit.trial) {
+                    trialInFlight = false;
+                    state = State.CLOSED;
+                    generation++;
+                }
+                failures = 0;
+            }
+        }
+        bulkhead.release();
+    }
+
+    /**
+     * Record a failed call and give back its place in the bulkhead.
+     * A call that was granted before the breaker last opened or closed
+     * does not change its state.
+     *
+     * @param permit the permit the call was granted
+     */
+    public void recordFailure(Permit permit) {
+        synchronized (this) {
+            if (permit.generation == generation) {
+                failures++;
+                if (permit.trial || failures >= failureThreshold) {
+                    trialInFlight = false;
+                    state = State.OPEN;
+                    openedAt = System.currentTimeMillis();
+                    generation++;
+                }
+            }
+        }
+        bulkhead.release();
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Check, without asking for a permit, whether a call would be rejected
+     * right now because the breaker is open and its open period has not passed.
+     *
+     * @return true if the breaker rejects calls
+     */
+    public synchronized boolean isRejecting() {
+        return state == State.OPEN && System.currentTimeMillis() - openedAt < openMillis;
+    }
+
+    /**
+     * Close the breaker and forget all failures.
+     */
+    public synchronized void reset() {
+        state = State.CLOSED;
+        failures = 0;
+        trialInFlight = false;
+        generation++;
+    }
+
+    /**
+     * The permission to make a single call. It records whether the call is the
+     * trial call of a half open breaker, and the generation of the breaker,
+     * which changes every time the breaker opens or closes.
+     */
+    public static final class Permit {
+        private final transient boolean trial;
+        private final transient long generation;
+
+        private Permit(boolean trial, long generation) {
+            this.trial = trial;
+            this.generation = generation;
+        }
+    }
+}
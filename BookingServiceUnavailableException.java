@@ -0,0 +1,18 @@
+package nl.tudelft.sem.roomapp.services;
+
+/**
+ * Thrown when the availability of rooms could not be checked with the
+ * Booking service, because the call failed or was not attempted at all.
+ */
+public class BookingServiceUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public BookingServiceUnavailableException(String message) {
+        super(message);
+    }
+
+    public BookingServiceUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
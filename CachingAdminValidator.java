@@ -0,0 +1,46 @@
+package nl.tudelft.sem.roomapp.handlers;
+
+import nl.tudelft.sem.roomapp.services.TokenCache;
+
+/**
+ * Decorator around an AdminValidator chain that remembers the tokens the chain
+ * accepted in the {@link TokenCache}, under the scope of the chain. Only the first
+ * request with a token runs the chain and its calls to the User service, concurrent
+ * requests with the same token wait for that run. Rejected tokens are not remembered.
+ */
+public class CachingAdminValidator implements AdminValidator {
+
+    private final transient String scope;
+    private final transient AdminValidator delegate;
+    private final transient TokenCache tokenCache;
+
+    /**
+     * Create a caching validator.
+     *
+     * @param scope      the name under which the tokens accepted by the chain are cached
+     * @param delegate   the first validator of the chain
+     * @param tokenCache the cache of accepted tokens
+     */
+    public CachingAdminValidator(String scope, AdminValidator delegate, TokenCache tokenCache) {
+        this.scope = scope;
+        this.delegate = delegate;
+        this.tokenCache = tokenCache;
+    }
+
+    @Override
+    public void setNext(AdminValidator next) {
+        delegate.setNext(next);
+    }
+
+    @Override
+    public boolean handle(String token) {
+        return tokenCache.validate(scope, token, uncached -> {
+            try {
+                return delegate.handle(uncached);
+            } catch (Exception e) { //NOPMD
+                // A token the chain cannot validate is rejected
+                return false;
+            }
+        });
+    }
+}
@@ -0,0 +1,51 @@
+package nl.tudelft.sem.roomapp.config;
+
+import javax.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Creates the indexes used by the room search, once Hibernate has created
+ * the tables: the capacity of a room, the name and opening hours of a
+ * building and the name of a piece of equipment together with its room.
+ */
+@Configuration
+@DependsOn("entityManagerFactory")
+public class DatabaseIndexConfiguration {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatabaseIndexConfiguration.class);
+
+    private static final String[] INDEXES = {
+        "CREATE INDEX IF NOT EXISTS idx_room_capacity ON room (capacity)",
+        "CREATE INDEX IF NOT EXISTS idx_building_name_hours"
+                + " ON building (name, opening_time, closing_time)",
+        "CREATE INDEX IF NOT EXISTS idx_equipment_name_room ON equipment (name, room_id)"
+    };
+
+    @Autowired
+    private transient JdbcTemplate jdbcTemplate;
+
+    @Value("${search.schema.create-indexes:true}")
+    private transient boolean createIndexes;
+
+    @PostConstruct
+    void createSearchIndexes() {
+        if (!createIndexes) {
+            return;
+        }
+        for (String index : INDEXES) {
+            try {
+                jdbcTemplate.execute(index);
+            } catch (DataAccessException e) {
+                // A database without the table or the syntax is searched without the index
+                LOGGER.warn("Could not create search index with \"{}\"", index, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package nl.tudelft.sem.roomapp.config;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * The HTTP clients shared by all calls to the other services.
+ */
+@Configuration
+public class HttpClientConfiguration {
+
+    /**
+     * A RestTemplate that keeps connections alive in a pool, so
+     * consecutive calls to a service reuse the same TCP connection.
+     *
+     * @param bookingUrl         the base URL of the Booking service
+     * @param maxConnections     the maximum number of pooled connections
+     * @param maxPerRoute        the maximum number of connections to a single service
+     * @param maxBookingRoute    the maximum number of connections to the Booking service
+     * @param connectTimeout     the connect timeout in milliseconds
+     * @param readTimeout        the read timeout in milliseconds
+     * @param compression        whether to ask for compressed responses
+     * @return the shared RestTemplate
+     */
+    @Bean
+    public RestTemplate restTemplate(
+            @Value("${booking.url:http://localhost:8082}") String bookingUrl,
+            @Value("${http.client.max-connections:200}") int maxConnections,
+            @Value("${http.client.max-per-route:20}") int maxPerRoute,
+            @Value("${http.client.booking.max-connections:50}") int maxBookingRoute,
+            @Value("${http.client.connect-timeout-ms:1000}") int connectTimeout,
+            @Value("${http.client.read-timeout-ms:2000}") int readTimeout,
+            @Value("${http.client.compression:true}") boolean compression) {
+        PoolingHttpClientConnectionManager connectionManager =
+                new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        URI booking = URI.create(bookingUrl);
+        boolean secure = "https".equalsIgnoreCase(booking.getScheme());
+        // The pool keys its routes by the actual port, also when the URL leaves it out
+        int port = booking.getPort() != -1 ? booking.getPort() : secure ? 443 : 80;
+        connectionManager.setMaxPerRoute(new HttpRoute(
+                new HttpHost(booking.getHost(), port, booking.getScheme()), null, secure),
+                maxBookingRoute);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .evictIdleConnections(30, TimeUnit.SECONDS);
+        if (!compression) {
+            builder.disableContentCompression();
+        }
+        return new RestTemplate(new HttpComponentsClientHttpRequestFactory(builder.build()));
+    }
+
+    /**
+     * A non-blocking HTTP client. It keeps connections alive by itself.
+     *
+     * @param connectTimeout the connect timeout in milliseconds
+     * @return the shared HttpClient
+     */
+    @Bean
+    public HttpClient httpClient(
+            @Value("${http.client.connect-timeout-ms:1000}") int connectTimeout) {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(connectTimeout))
+                .build();
+    }
+}
@@ -0,0 +1,364 @@
+package nl.tudelft.sem.roomapp.services;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import nl.tudelft.sem.roomapp.models.Booking;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Local copy of the bookings of every room, kept in sync by the events of the
+ * Booking service. Every day of a room is a bitmap of 15 minute slots, in which
+ * a set bit means the slot is (partly) booked, so checking whether a room is free
+ * during a period comes down to a bitwise AND per day. The bookings themselves are
+ * kept as well, so a cancelled booking frees only the slots no other booking uses.
+ *
+ * <p>The events only report changes, so the calendar is not complete until the
+ * Booking service has sent a snapshot of all bookings with {@link #sync}. Until
+ * then, and after {@link #clear}, {@link #isSynced} is false. Periods longer than
+ * calendar.max-window-days are rejected, as they would touch a bitmap for every day.
+ * Every change of the bookings increments the version of the calendar.
+ *
+ * <p>The calendar only keeps the bookings from today on. On the first change of
+ * every day, the bookings and bitmaps of the days before are dropped, so the
+ * calendar does not grow with its history. Periods starting before today are
+ * not {@link #covers covered}.
+ */
+@Service
+public class RoomCalendar {
+
+    public static final int SLOT_MINUTES = 15;
+    private static final int SLOTS_PER_DAY = 24 * 60 / SLOT_MINUTES;
+    private static final int WORDS_PER_DAY = (SLOTS_PER_DAY + 63) / 64;
+
+    private final transient Duration maxWindow;
+    private final transient Map<Integer, List<Booking>> bookings = new HashMap<>();
+    private final transient Map<Integer, Map<LocalDate, long[]>> bookedSlots = new HashMap<>();
+    private transient boolean synced;
+    private transient long version;
+    private transient Clock clock = Clock.systemDefaultZone();
+    private transient LocalDate keptFrom = LocalDate.MIN;
+
+    /**
+     * Create a new, not yet synced, calendar.
+     *
+     * @param maxWindowDays the maximum number of days of a booking or searched period
+     */
+    public RoomCalendar(@Value("${calendar.max-window-days:31}") int maxWindowDays) {
+        this.maxWindow = Duration.ofDays(maxWindowDays);
+    }
+
+    /**
+     * Check whether a period is not empty and not longer than the maximum window.
+     *
+     * @param startsAt the start of the period
+     * @param endsAt   the end of the period
+     * @return true if the calendar accepts the period
+     */
+    public boolean accepts(LocalDateTime startsAt, LocalDateTime endsAt) {
+        return startsAt.isBefore(endsAt)
+                && Duration.between(startsAt, endsAt).compareTo(maxWindow) <= 0;
+    }
+
+    /**
+     * Replace all bookings with a snapshot of the Booking service,
+     * after which the calendar is synced.
+     *
+     * @param snapshot all current bookings
+     * @throws IllegalArgumentException if the calendar does not accept the period of a booking
+     */
+    public synchronized void sync(Collection<Booking> snapshot) {
+        for (Booking booking : snapshot) {
+            checkWindow(booking.getStartsAt(), booking.getEndsAt());
+        }
+        bookings.clear();
+        bookedSlots.clear();
+        for (Booking booking : snapshot) {
+            book(booking.getRoomId(), booking.getStartsAt(), booking.getEndsAt());
+        }
+        synced = true;
+        version++;
+    }
+
+    /**
+     * Check whether the calendar still knows the bookings of a period, which
+     * is the case for periods that do not start before today.
+     *
+     * @param startsAt the start of the period
+     * @return true if the bookings of the period are kept
+     */
+    public boolean covers(LocalDateTime startsAt) {
+        return !startsAt.toLocalDate().isBefore(LocalDate.now(clock));
+    }
+
+    public synchronized boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * Get the number of changes of the bookings since the application started.
+     *
+     * @return the current version of the calendar
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Add a booking of a room and mark the slots overlapping with it as booked.
+     *
+     * @param roomId   the ID of the booked room
+     * @param startsAt the start of the booking
+     * @param endsAt   the end of the booking
+     * @throws IllegalArgumentException if the calendar does not accept the period
+     */
+    public synchronized void book(int roomId, LocalDateTime startsAt, LocalDateTime endsAt) {
+        checkWindow(startsAt, endsAt);
+        prune();
+        if (!endsAt.isAfter(keptFrom.atStartOfDay())) {
+            // A booking that has already ended would be dropped right away
+            return;
+        }
+        bookings.computeIfAbsent(roomId, id -> new ArrayList<>())
+                .add(new Booking(roomId, startsAt, endsAt));
+        Map<LocalDate, long[]> days = bookedSlots.computeIfAbsent(roomId, id -> new HashMap<>());
+        for (LocalDate day = firstKeptDay(startsAt); !day.isAfter(lastDay(endsAt));
+                day = day.plusDays(1)) {
+            long[] mask = mask(day, startsAt, endsAt);
+            long[] booked = days.computeIfAbsent(day, d -> new long[WORDS_PER_DAY]);
+            for (int i = 0; i < WORDS_PER_DAY; i++) {
+                booked[i] |= mask[i];
+            }
+        }
+        version++;
+    }
+
+    /**
+     * Remove a cancelled booking of a room. The bitmaps of the days of the booking
+     * are rebuilt from the remaining bookings, so slots shared with another
+     * booking stay booked. A booking that is not in the calendar is ignored.
+     *
+     * @param roomId   the ID of the room
+     * @param startsAt the start of the cancelled booking
+     * @param endsAt   the end of the cancelled booking
+     */
+    public synchronized void release(int roomId, LocalDateTime startsAt, LocalDateTime endsAt) {
+        prune();
+        List<Booking> roomBookings = bookings.getOrDefault(roomId, new ArrayList<>());
+        // Remove a single booking, the same period may have been booked twice
+        Iterator<Booking> iterator = roomBookings.iterator();
+        boolean removed = false;
+        while (!removed && iterator.hasNext()) {
+            Booking booking = iterator.next();
+            if (booking.getStartsAt().equals(startsAt) && booking.getEndsAt().equals(endsAt)) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        if (!removed) {
+            return;
+        }
+        version++;
+
+        Map<LocalDate, long[]> days = bookedSlots.get(roomId);
+        for (LocalDate day = firstKeptDay(startsAt); !day.isAfter(lastDay(endsAt));
+                day = day.plusDays(1)) {
+            LocalDateTime dayStart = day.atStartOfDay();
+            long[] booked = new long[WORDS_PER_DAY];
+            boolean anyBooked = false;
+            for (Booking booking : roomBookings) {
+                if (booking.getStartsAt().isBefore(dayStart.plusDays(1))
+                        && booking.getEndsAt().isAfter(dayStart)) {
+                    long[] mask = mask(day, booking.getStartsAt(), booking.getEndsAt());
+                    for (int i = 0; i < WORDS_PER_DAY; i++) {
+                        booked[i] |= mask[i];
+                    }
+                    anyBooked = true;
+                }
+            }
+            if (anyBooked) {
+                days.put(day, booked);
+            } else {
+                days.remove(day);
+            }
+        }
+        if (roomBookings.isEmpty()) {
+            bookings.remove(roomId);
+            bookedSlots.remove(roomId);
+        }
+    }
+
+    /**
+     * Check whether a room has no booking overlapping with the given period.
+     *
+     * @param roomId   the ID of the room
+     * @param startsAt the start of the period
+     * @param endsAt   the end of the period
+     * @return true if none of the slots overlapping with the period are booked
+     * @throws IllegalArgumentException if the calendar does not accept the period
+     */
+    public synchronized boolean isFree(int roomId, LocalDateTime startsAt, LocalDateTime endsAt) {
+        checkWindow(startsAt, endsAt);
+        return isFreeDuring(roomId, startsAt, endsAt);
+    }
+
+    /**
+     * Find the earliest moment, aligned to a slot, from which a room is free
+     * for the given number of minutes without passing the end of the period.
+     * The booked slots of the period are collected in one bit set, in which
+     * every free stretch is found with a single nextClearBit and nextSetBit,
+     * instead of checking every slot. A room does not become free before today.
+     *
+     * @param roomId   the ID of the room
+     * @param from     the start of the period
+     * @param to       the end of the period
+     * @param minutes  the number of minutes the room must be free
+     * @return the earliest start, or null if the room is not free that long
+     * @throws IllegalArgumentException if the calendar does not accept the period
+     */
+    public synchronized LocalDateTime firstFreeStart(int roomId, LocalDateTime from,
+                                                     LocalDateTime to, int minutes) {
+        checkWindow(from, to);
+        LocalDateTime today = LocalDate.now(clock).atStartOfDay();
+        LocalDateTime earliest = ceilToSlot(from.isBefore(today) ? today : from);
+        LocalDate firstDay = earliest.toLocalDate();
+
+        // Slot i of the bit set is slot i of the first day, counting on into the next days
+        BitSet booked = new BitSet();
+        Map<LocalDate, long[]> days = bookedSlots.getOrDefault(roomId, new HashMap<>());
+        for (LocalDate day = firstDay; !day.isAfter(lastDay(to)); day = day.plusDays(1)) {
+            long[] dayBooked = days.get(day);
+            if (dayBooked != null) {
+                int offset = (int) Duration.between(firstDay.atStartOfDay(),
+                        day.atStartOfDay()).toDays() * SLOTS_PER_DAY;
+                BitSet daySlots = BitSet.valueOf(dayBooked);
+                for (int slot = daySlots.nextSetBit(0); slot >= 0;
+                        slot = daySlots.nextSetBit(slot + 1)) {
+                    booked.set(offset + slot);
+                }
+            }
+        }
+
+        int needed = (minutes + SLOT_MINUTES - 1) / SLOT_MINUTES;
+        int candidate = booked.nextClearBit(slotOf(earliest.toLocalTime()));
+        while (true) {
+            LocalDateTime start = firstDay.atStartOfDay()
+                    .plusMinutes((long) candidate * SLOT_MINUTES);
+            if (start.plusMinutes(minutes).isAfter(to)) {
+                return null;
+            }
+            int nextBooked = booked.nextSetBit(candidate);
+            if (nextBooked < 0 || nextBooked >= candidate + needed) {
+                return start;
+            }
+            candidate = booked.nextClearBit(nextBooked);
+        }
+    }
+
+    /**
+     * Forget all bookings, after which the calendar is no longer synced.
+     */
+    public synchronized void clear() {
+        bookings.clear();
+        bookedSlots.clear();
+        synced = false;
+        keptFrom = LocalDate.MIN;
+        version++;
+    }
+
+    private boolean isFreeDuring(int roomId, LocalDateTime startsAt, LocalDateTime endsAt) {
+        Map<LocalDate, long[]> days = bookedSlots.get(roomId);
+        if (days == null) {
+            return true;
+        }
+        for (LocalDate day = startsAt.toLocalDate(); !day.isAfter(lastDay(endsAt));
+                day = day.plusDays(1)) {
+            long[] booked = days.get(day);
+            if (booked != null) {
+                long[] mask = mask(day, startsAt, endsAt);
+                for (int i = 0; i < WORDS_PER_DAY; i++) {
+                    if ((booked[i] & mask[i]) != 0) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop the bookings and bitmaps of the days before today, once a day.
+     */
+    private void prune() {
+        LocalDate today = LocalDate.now(clock);
+        if (!keptFrom.isBefore(today)) {
+            return;
+        }
+        keptFrom = today;
+        LocalDateTime todayStart = today.atStartOfDay();
+        Iterator<Map.Entry<Integer, List<Booking>>> rooms = bookings.entrySet().iterator();
+        while (rooms.hasNext()) {
+            Map.Entry<Integer, List<Booking>> room = rooms.next();
+            room.getValue().removeIf(booking -> !booking.getEndsAt().isAfter(todayStart));
+            if (room.getValue().isEmpty()) {
+                bookedSlots.remove(room.getKey());
+                rooms.remove();
+            } else {
+                bookedSlots.get(room.getKey()).keySet().removeIf(day -> day.isBefore(today));
+            }
+        }
+    }
+
+    private LocalDate firstKeptDay(LocalDateTime startsAt) {
+        LocalDate day = startsAt.toLocalDate();
+        return day.isBefore(keptFrom) ? keptFrom : day;
+    }
+
+    private void checkWindow(LocalDateTime startsAt, LocalDateTime endsAt) {
+        if (!accepts(startsAt, endsAt)) {
+            throw new IllegalArgumentException("The period must end after it starts and span "
+                    + "at most " + maxWindow.toDays() + " days");
+        }
+    }
+
+    /**
+     * Build the bitmap of the slots of a day that overlap with [startsAt, endsAt).
+     */
+    private static long[] mask(LocalDate day, LocalDateTime startsAt, LocalDateTime endsAt) {
+        long[] mask = new long[WORDS_PER_DAY];
+        LocalDateTime dayStart = day.atStartOfDay();
+        int first = startsAt.isAfter(dayStart)
+                ? slotOf(startsAt.toLocalTime()) : 0;
+        int last = endsAt.isBefore(dayStart.plusDays(1))
+                ? slotOf(endsAt.minusNanos(1).toLocalTime()) : SLOTS_PER_DAY - 1;
+        for (int slot = first; slot <= last; slot++) {
+            mask[slot / 64] |= 1L << (slot % 64);
+        }
+        return mask;
+    }
+
+    private static int slotOf(LocalTime time) {
+        return (time.getHour() * 60 + time.getMinute()) / SLOT_MINUTES;
+    }
+
+    private static LocalDate lastDay(LocalDateTime endsAt) {
+        // A period ending at midnight does not occupy the next day
+        return endsAt.minusNanos(1).toLocalDate();
+    }
+
+    private static LocalDateTime ceilToSlot(LocalDateTime time) {
+        LocalDateTime slotStart = time.toLocalDate().atTime(
+                LocalTime.MIN.plusMinutes((long) slotOf(time.toLocalTime()) * SLOT_MINUTES));
+        return slotStart.isBefore(time) ? slotStart.plusMinutes(SLOT_MINUTES) : slotStart;
+    }
+}
@@ -1,28 +1,73 @@
 package nl.tudelft.sem.roomapp;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.anyRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.anyUrl;
 import static com.github.tomakehurst.wiremock.client.WireMock.configureFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
-import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.client.WireMock;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManagerFactory;
+import nl.tudelft.sem.roomapp.config.AuthenticationConfiguration;
+import nl.tudelft.sem.roomapp.controller.RoomSearchController;
+import nl.tudelft.sem.roomapp.models.AvailableRooms;
+import nl.tudelft.sem.roomapp.models.Booking;
 import nl.tudelft.sem.roomapp.models.Building;
 import nl.tudelft.sem.roomapp.models.Equipment;
 import nl.tudelft.sem.roomapp.models.Room;
+import nl.tudelft.sem.roomapp.models.SearchQuery;
 import nl.tudelft.sem.roomapp.repository.BuildingRepository;
 import nl.tudelft.sem.roomapp.repository.EquipmentRepository;
 import nl.tudelft.sem.roomapp.repository.RoomRepository;
+import nl.tudelft.sem.roomapp.services.AvailabilityCache;
+import nl.tudelft.sem.roomapp.services.BookingCircuitBreaker;
+import nl.tudelft.sem.roomapp.services.RoomCalendar;
+import nl.tudelft.sem.roomapp.services.RoomSearchIndex;
+import nl.tudelft.sem.roomapp.services.TokenCache;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.MethodOrderer;
@@ -34,9 +79,15 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
 
 
@@ -47,11 +98,15 @@ import org.springframework.test.web.servlet.MockMvc;
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
 public class RoomControllerTest {
 
+    // The ports of the mocked services, which can be moved with -Dbooking.port and -Duser.port
+    private static final int BOOKING_PORT = Integer.getInteger("booking.port", 8082);
+    private static final int USER_PORT = Integer.getInteger("user.port", 8081);
+
     @Autowired
     transient MockMvc mvc;
 
     // Create mocked servers for the user and room service
-    private final transient WireMockServer bookingMockServer = new WireMockServer(8082);
+    private final transient WireMockServer bookingMockServer = new WireMockServer(BOOKING_PORT);
 
     @Autowired
     transient RoomRepository roomRepository;
@@ -62,6 +117,36 @@ public class RoomControllerTest {
     @Autowired
     transient EquipmentRepository equipmentRepository;
 
+    @Autowired
+    transient EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    transient AvailabilityCache availabilityCache;
+
+    @Autowired
+    transient RoomSearchController roomSearchController;
+
+    @Autowired
+    transient RoomSearchIndex roomSearchIndex;
+
+    @Autowired
+    transient MeterRegistry meterRegistry;
+
+    @Autowired
+    transient RoomCalendar roomCalendar;
+
+    @Autowired
+    transient ObjectMapper objectMapper;
+
+    @Autowired
+    transient BookingCircuitBreaker circuitBreaker;
+
+    @Autowired
+    transient TokenCache tokenCache;
+
+    @Autowired
+    transient AuthenticationConfiguration authenticationConfiguration;
+
     transient String ewi = "ewi"; //Anti PMD string
     transient String room1 = "Room1"; //Anti PMD string
     transient String room3 = "Room3"; //Anti PMD string
@@ -77,6 +162,11 @@ public class RoomControllerTest {
     transient String pulse = "pulse"; //Anti PMD string
     transient String whiteboard = "Whiteboard"; //Anti PMD string
 
+    @DynamicPropertySource
+    static void serviceUrls(DynamicPropertyRegistry registry) {
+        registry.add("booking.url", () -> "http://localhost:" + BOOKING_PORT);
+    }
+
     /**
      * Initialization of the databases containing one room.
      */
@@ -94,6 +184,18 @@ public class RoomControllerTest {
         roomRepository.saveAndFlush(room);
         Equipment equipment = new Equipment(room, computer);
         equipmentRepository.saveAndFlush(equipment);
+
+        availabilityCache.invalidateAll();
+        // The calendar drops the days before today, and the tests book December 2021
+        ReflectionTestUtils.setField(roomCalendar, "clock", clockAt(
+                LocalDateTime.of(2021, 11, 1, 0, 0, 0)));
+        roomCalendar.clear();
+        circuitBreaker.reset();
+    }
+
+    private static Clock clockAt(LocalDateTime now) {
+        ZoneId zone = ZoneId.systemDefault();
+        return Clock.fixed(now.atZone(zone).toInstant(), zone);
     }
 
     @BeforeEach
@@ -116,7 +218,7 @@ public class RoomControllerTest {
         int idRoom1 = roomRepository.getAllByCapacity(10).get(0).getId();
         ids.add(idRoom1);
         body.put(availableRooms, ids);
-        createStubJson(8082, url + idRoom1, body);
+        createStubJson(BOOKING_PORT, url + idRoom1, body);
 
         LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
                 9, 20, 0);
@@ -164,7 +266,7 @@ public class RoomControllerTest {
         int idRoom1 = roomRepository.getAllByCapacity(10).get(0).getId();
         ids.add(idRoom1);
         body.put(availableRooms, ids);
-        createStubJson(8082, url + idRoom1, body);
+        createStubJson(BOOKING_PORT, url + idRoom1, body);
 
         LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
                 10, 20, 0);
@@ -202,7 +304,7 @@ public class RoomControllerTest {
         ids.add(idRoom1);
         ids.add(idRoom2);
         body.put(availableRooms, ids);
-        createStubJson(8082, url + idRoom1 + "," + idRoom2, body);
+        createStubJson(BOOKING_PORT, url + idRoom1 + "," + idRoom2, body);
 
         LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
                 10, 20, 0);
@@ -277,7 +379,7 @@ public class RoomControllerTest {
         int idRoom1 = roomRepository.getAllByCapacity(10).get(0).getId();
         ids.add(idRoom1);
         body.put(availableRooms, ids);
-        createStubJson(8082, url + idRoom1, body);
+        createStubJson(BOOKING_PORT, url + idRoom1, body);
 
         LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
                 9, 20, 0);
@@ -315,6 +417,1085 @@ public class RoomControllerTest {
                 .andExpect(jsonPath(roomsname1).doesNotHaveJsonPath());
     }
 
+    @Order(10)
+    @Test
+    public void checkBookedRoomsDoesNotQueryRoomsById() throws Exception {
+        // Add two more rooms to the building of Room1
+        Building building = buildingRepository.findAll().get(0);
+        Room room2 = new Room("Room2", 12, building);
+        roomRepository.saveAndFlush(room2);
+        Room room = new Room(room3, 14, building);
+        roomRepository.saveAndFlush(room);
+
+        // Mock a valid response from the Booking service
+        Map<String, Iterable<Integer>> body = new HashMap<>();
+        List<Integer> ids = new ArrayList<>();
+        int idRoom1 = roomRepository.getAllByCapacity(10).get(0).getId();
+        ids.add(idRoom1);
+        ids.add(idRoom1 + 1);
+        ids.add(idRoom1 + 2);
+        body.put(availableRooms, ids);
+        createStubJson(BOOKING_PORT, url + idRoom1 + "," + (idRoom1 + 1) + ","
+                + (idRoom1 + 2), body);
+
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
+                9, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1,
+                9, 40, 0);
+
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class)
+                .getStatistics();
+        statistics.setStatisticsEnabled(true);
+
+        // Count the statements of a search without the Booking service check
+        statistics.clear();
+        this.mvc.perform(get(searchallcriteria)
+                        .param(capacity, "10"))
+                .andExpect(status().isOk());
+        long withoutBookingCheck = statistics.getPrepareStatementCount();
+
+        // Filtering the same three rooms on availability must not add any statements
+        statistics.clear();
+        this.mvc.perform(get(searchallcriteria)
+                        .param(capacity, "10")
+                        .param(startsAtString, startsAt.toString())
+                        .param(endsAtString, endsAt.toString()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath(roomsname0).value(room1))
+                .andExpect(jsonPath(roomsname1).value("Room2"))
+                .andExpect(jsonPath("$.rooms[2].name").value(room3));
+        long withBookingCheck = statistics.getPrepareStatementCount();
+        statistics.setStatisticsEnabled(false);
+
+        assertEquals(withoutBookingCheck, withBookingCheck);
+    }
+
+    @Order(11)
+    @Test
+    public void asyncSearchReleasesRequestThreadsWhileBookingServiceIsSlow() throws Exception {
+        // Mock a slow response from the Booking service
+        int idRoom1 = roomRepository.getAllByCapacity(10).get(0).getId();
+        int delay = 500;
+        configureFor(BOOKING_PORT);
+        stubFor(WireMock.get(urlPathEqualTo(url + idRoom1))
+                .willReturn(okJson("{availableRooms=[" + idRoom1 + "]}")
+                        .withFixedDelay(delay)));
+
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
+                9, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1,
+                9, 40, 0);
+
+        // Every request returns as soon as the Booking service call is in flight,
+        // so a single caller can have all of them outstanding at the same time.
+        int requests = 10;
+        long begin = System.currentTimeMillis();
+        List<MvcResult> results = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            results.add(this.mvc.perform(get(searchallcriteria + "/async")
+                            .param(startsAtString, startsAt.toString())
+                            .param(endsAtString, endsAt.toString()))
+                    .andExpect(request().asyncStarted())
+                    .andReturn());
+        }
+        for (MvcResult result : results) {
+            this.mvc.perform(asyncDispatch(result))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath(roomsname0).value(room1));
+        }
+        long elapsed = System.currentTimeMillis() - begin;
+
+        assertTrue(elapsed < (long) requests * delay / 2,
+                "Requests were not handled concurrently, took " + elapsed + " ms");
+    }
+
+    @Order(12)
+    @Test
+    public void asyncSearchFailsFastOnTimeout() throws Exception {
+        // Mock a Booking service that answers after the read timeout
+        configureFor(BOOKING_PORT);
+        stubFor(WireMock.get(urlPathMatching(url + ".*"))
+                .willReturn(okJson("{availableRooms=[]}").withFixedDelay(5000)));
+
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
+                9, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1,
+                9, 40, 0);
+
+        Timer timeouts = meterRegistry.timer("room.search.booking.requests",
+                "status", "timeout", "filters", "time");
+        long timeoutsBefore = timeouts.count();
+
+        MvcResult result = this.mvc.perform(get(searchallcriteria + "/async")
+                        .param(startsAtString, startsAt.toString())
+                        .param(endsAtString, endsAt.toString()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mvc.perform(asyncDispatch(result))
+                .andExpect(status().isServiceUnavailable());
+
+        // The blocking search records its read timeout under the same status
+        this.mvc.perform(get(searchallcriteria)
+                        .param(startsAtString, startsAt.toString())
+                        .param(endsAtString, endsAt.toString()))
+                .andExpect(status().isServiceUnavailable());
+        assertEquals(timeoutsBefore + 2, timeouts.count());
+    }
+
+    @Order(13)
+    @Test
+    public void repeatedSearchIsAnsweredFromAvailabilityCache() throws Exception {
+        // Mock a valid response from the Booking service
+        Map<String, Iterable<Integer>> body = new HashMap<>();
+        List<Integer> ids = new ArrayList<>();
+        int idRoom1 = roomRepository.getAllByCapacity(10).get(0).getId();
+        ids.add(idRoom1);
+        body.put(availableRooms, ids);
+        createStubJson(BOOKING_PORT, url + idRoom1, body);
+
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
+                9, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1,
+                9, 40, 0);
+
+        long hitsBefore = availabilityCache.getStatistics().get("hits");
+        for (int i = 0; i < 3; i++) {
+            this.mvc.perform(get(searchallcriteria)
+                            .param(startsAtString, startsAt.toString())
+                            .param(endsAtString, endsAt.toString()))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath(roomsname0).value(room1));
+        }
+        bookingMockServer.verify(1, getRequestedFor(urlPathEqualTo(url + idRoom1))
+                .withQueryParam(startsAtString, equalTo(startsAt.toString()))
+                .withQueryParam(endsAtString, equalTo(endsAt.toString())));
+
+        assertEquals(hitsBefore + 2, availabilityCache.getStatistics().get("hits"));
+        this.mvc.perform(get("/search/availability/cache-statistics"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.size").value(1));
+        assertEquals(hitsBefore + 2,
+                meterRegistry.get("room.search.availability.cache.hits")
+                        .functionCounter().count());
+        assertEquals(1, meterRegistry.get("room.search.availability.cache.size")
+                .gauge().value());
+
+        // A booking for Room1 makes the Room service ask the Booking service again
+        this.mvc.perform(post("/search/availability/invalidate")
+                        .param("roomId", String.valueOf(idRoom1))
+                        .param(startsAtString, startsAt.toString())
+                        .param(endsAtString, endsAt.plusHours(1).toString()))
+                .andExpect(status().isOk());
+        this.mvc.perform(get(searchallcriteria)
+                        .param(startsAtString, startsAt.toString())
+                        .param(endsAtString, endsAt.toString()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath(roomsname0).value(room1));
+        bookingMockServer.verify(2, getRequestedFor(urlPathEqualTo(url + idRoom1)));
+
+        // An answer asked for before a booking change of the room is not cached,
+        // a booking change of another room does not affect it
+        long version = availabilityCache.getVersion(idRoom1);
+        availabilityCache.invalidate(idRoom1 + 1, startsAt, endsAt);
+        assertEquals(version, availabilityCache.getVersion(idRoom1));
+        availabilityCache.put(idRoom1 + 1, startsAt, endsAt, true,
+                availabilityCache.getVersion(idRoom1 + 1));
+        availabilityCache.invalidate(idRoom1, startsAt, endsAt);
+        availabilityCache.put(idRoom1, startsAt, endsAt, true, version);
+        assertNull(availabilityCache.get(idRoom1, startsAt, endsAt));
+        assertTrue(availabilityCache.get(idRoom1 + 1, startsAt, endsAt));
+    }
+
+    @Order(14)
+    @Test
+    public void checkBookedRoomsSplitsRoomIdsIntoChunks() throws Exception {
+        // Add 19 more rooms to the building of Room1
+        Building building = buildingRepository.findAll().get(0);
+        for (int i = 2; i <= 20; i++) {
+            roomRepository.saveAndFlush(new Room("Room" + i, 10, building));
+        }
+        List<Integer> ids = new ArrayList<>();
+        for (Room room : roomRepository.findAll()) {
+            ids.add(room.getId());
+        }
+
+        // The Booking service stub rejects URLs with more than 20 characters of IDs
+        Map<String, Iterable<Integer>> body = new HashMap<>();
+        body.put(availableRooms, ids);
+        configureFor(BOOKING_PORT);
+        stubFor(WireMock.get(urlPathMatching(url + "[0-9,]{1,20}"))
+                .atPriority(1)
+                .willReturn(okJson(body.toString())));
+        stubFor(WireMock.get(urlPathMatching(url + ".*"))
+                .atPriority(10)
+                .willReturn(WireMock.aResponse().withStatus(414)));
+
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
+                9, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1,
+                9, 40, 0);
+
+        ReflectionTestUtils.setField(roomSearchController, "chunkSize", 3);
+        try {
+            this.mvc.perform(get(searchallcriteria)
+                            .param(startsAtString, startsAt.toString())
+                            .param(endsAtString, endsAt.toString()))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.rooms.length()").value(20))
+                    .andExpect(jsonPath(roomsname0).value(room1))
+                    .andExpect(jsonPath("$.rooms[19].name").value("Room20"));
+        } finally {
+            ReflectionTestUtils.setField(roomSearchController, "chunkSize", 100);
+        }
+        bookingMockServer.verify(7, getRequestedFor(urlPathMatching(url + ".*")));
+
+        // A chunk size that would never split the rooms is rejected at startup
+        ReflectionTestUtils.setField(roomSearchController, "chunkSize", 0);
+        try {
+            assertThrows(IllegalStateException.class, () -> ReflectionTestUtils.invokeMethod(
+                    roomSearchController, "startBookingExecutor"));
+        } finally {
+            ReflectionTestUtils.setField(roomSearchController, "chunkSize", 100);
+        }
+    }
+
+    @Order(15)
+    @Test
+    public void checkBookedRoomsAcceptsJsonResponses() throws Exception {
+        // Mock a JSON response with an empty list of available rooms
+        int idRoom1 = roomRepository.getAllByCapacity(10).get(0).getId();
+        configureFor(BOOKING_PORT);
+        stubFor(WireMock.get(urlPathEqualTo(url + idRoom1))
+                .willReturn(okJson("{\"availableRooms\": [ ]}")));
+
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
+                9, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1,
+                9, 40, 0);
+
+        List<Room> emptyList = new ArrayList<>();
+        this.mvc.perform(get(searchallcriteria)
+                        .param(startsAtString, startsAt.toString())
+                        .param(endsAtString, endsAt.toString()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.rooms").value(emptyList));
+
+        // Mock a JSON response containing Room1, in another time slot
+        stubFor(WireMock.get(urlPathEqualTo(url + idRoom1))
+                .willReturn(okJson("{\"availableRooms\":[\n  " + idRoom1 + "\n]}")));
+
+        this.mvc.perform(get(searchallcriteria)
+                        .param(startsAtString, startsAt.plusHours(1).toString())
+                        .param(endsAtString, endsAt.plusHours(1).toString()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath(roomsname0).value(room1));
+
+        // The IDs are read from the availableRooms key, not from the first list
+        assertTrue(AvailableRooms.parse(("{\"errors\": [], \"availableRooms\": [" + idRoom1
+                + "]}").getBytes(StandardCharsets.UTF_8)).contains(idRoom1));
+        assertTrue(AvailableRooms.parse(("{errors=[], availableRooms=[" + idRoom1
+                + "]}").getBytes(StandardCharsets.UTF_8)).contains(idRoom1));
+
+        // An ID that does not fit in an int is rejected instead of wrapping around
+        stubFor(WireMock.get(urlPathEqualTo(url + idRoom1))
+                .willReturn(okJson("{\"availableRooms\": [4294967297]}")));
+        this.mvc.perform(get(searchallcriteria)
+                        .param(startsAtString, startsAt.plusHours(2).toString())
+                        .param(endsAtString, endsAt.plusHours(2).toString()))
+                .andExpect(status().isServiceUnavailable());
+    }
+
+    @Order(16)
+    @Test
+    public void searchIndexAnswersRepeatedSearchesWithoutDatabase() throws Exception {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class)
+                .getStatistics();
+        statistics.setStatisticsEnabled(true);
+        ReflectionTestUtils.setField(roomSearchIndex, "mode", "index");
+        try {
+            this.mvc.perform(get(searchallcriteria)
+                            .param(capacity, "7")
+                            .param("equipment", computer))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath(roomsname0).value(room1));
+
+            // The same search is answered from the index
+            statistics.clear();
+            this.mvc.perform(get(searchallcriteria)
+                            .param(capacity, "7")
+                            .param("equipment", computer))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath(roomsname0).value(room1))
+                    .andExpect(jsonPath(roomsname1).doesNotHaveJsonPath());
+            assertEquals(0, statistics.getPrepareStatementCount());
+
+            // An added room and its equipment are applied to the index
+            Building building = buildingRepository.findAll().get(0);
+            Room room = new Room("Room2", 8, building);
+            roomRepository.saveAndFlush(room);
+            equipmentRepository.saveAndFlush(new Equipment(room, computer));
+
+            statistics.clear();
+            this.mvc.perform(get(searchallcriteria)
+                            .param(capacity, "7")
+                            .param("equipment", computer))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath(roomsname0).value(room1))
+                    .andExpect(jsonPath(roomsname1).value("Room2"));
+            assertEquals(0, statistics.getPrepareStatementCount());
+        } finally {
+            ReflectionTestUtils.setField(roomSearchIndex, "mode", "database");
+            statistics.setStatisticsEnabled(false);
+        }
+    }
+
+    @Order(17)
+    @Test
+    public void searchStagesAreRecordedAsMeters() throws Exception {
+        // Mock a valid response from the Booking service
+        Map<String, Iterable<Integer>> body = new HashMap<>();
+        List<Integer> ids = new ArrayList<>();
+        int idRoom1 = roomRepository.getAllByCapacity(10).get(0).getId();
+        ids.add(idRoom1);
+        body.put(availableRooms, ids);
+        createStubJson(BOOKING_PORT, url + idRoom1, body);
+
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
+                9, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1,
+                9, 40, 0);
+
+        Timer database = meterRegistry.timer("room.search.database",
+                "filters", "capacity,time");
+        Timer bookingRequests = meterRegistry.timer("room.search.booking.requests",
+                "status", "200", "filters", "capacity,time");
+        DistributionSummary results = meterRegistry.summary("room.search.results",
+                "filters", "capacity,time");
+        long databaseBefore = database.count();
+        long bookingRequestsBefore = bookingRequests.count();
+        double resultsBefore = results.totalAmount();
+
+        this.mvc.perform(get(searchallcriteria)
+                        .param(capacity, "7")
+                        .param(startsAtString, startsAt.toString())
+                        .param(endsAtString, endsAt.toString()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath(roomsname0).value(room1));
+
+        assertEquals(databaseBefore + 1, database.count());
+        assertEquals(bookingRequestsBefore + 1, bookingRequests.count());
+        assertEquals(resultsBefore + 1, results.totalAmount());
+        assertNotNull(meterRegistry.find("room.search.candidates")
+                .tag("filters", "capacity,time").summary());
+        assertNotNull(meterRegistry.find("room.search.booking.ids")
+                .tag("filters", "capacity,time").summary());
+    }
+
+    @Order(18)
+    @Test
+    public void paginatedSearchSkipsBookedRoomsAcrossPages() throws Exception {
+        // Add two more rooms to the building of Room1
+        Building building = buildingRepository.findAll().get(0);
+        roomRepository.saveAndFlush(new Room("Room2", 10, building));
+        roomRepository.saveAndFlush(new Room(room3, 10, building));
+        int idRoom1 = roomRepository.getAllByCapacity(10).get(0).getId();
+        int idRoom2 = idRoom1 + 1;
+        int idRoom3 = idRoom1 + 2;
+
+        // Room2 is booked
+        Map<String, Iterable<Integer>> body = new HashMap<>();
+        List<Integer> ids = new ArrayList<>();
+        ids.add(idRoom1);
+        body.put(availableRooms, ids);
+        createStubJson(BOOKING_PORT, url + idRoom1 + "," + idRoom2, body);
+        Map<String, Iterable<Integer>> body3 = new HashMap<>();
+        List<Integer> ids3 = new ArrayList<>();
+        ids3.add(idRoom3);
+        body3.put(availableRooms, ids3);
+        createStubJson(BOOKING_PORT, url + idRoom3, body3);
+
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
+                9, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1,
+                9, 40, 0);
+
+        // The first page is filled up with Room3 because Room2 is booked
+        this.mvc.perform(get(searchallcriteria)
+                        .param(startsAtString, startsAt.toString())
+                        .param(endsAtString, endsAt.toString())
+                        .param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath(roomsname0).value(room1))
+                .andExpect(jsonPath(roomsname1).value(room3))
+                .andExpect(jsonPath("$.next").isEmpty());
+
+        // Without time period, the pages follow the order of the IDs
+        this.mvc.perform(get(searchallcriteria)
+                        .param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath(roomsname0).value(room1))
+                .andExpect(jsonPath(roomsname1).value("Room2"))
+                .andExpect(jsonPath("$.next").value(idRoom2));
+        this.mvc.perform(get(searchallcriteria)
+                        .param("limit", "2")
+                        .param("after", String.valueOf(idRoom2)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath(roomsname0).value(room3))
+                .andExpect(jsonPath(roomsname1).doesNotHaveJsonPath())
+                .andExpect(jsonPath("$.next").isEmpty());
+
+        this.mvc.perform(get(searchallcriteria)
+                        .param("limit", "0"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Order(19)
+    @Test
+    public void streamingSearchWritesOneRoomPerLine() throws Exception {
+        Building building = buildingRepository.findAll().get(0);
+        roomRepository.saveAndFlush(new Room("Room2", 10, building));
+
+        MvcResult result = this.mvc.perform(get(searchallcriteria + "/stream"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-ndjson"))
+                .andExpect(content().string(startsWith("{")));
+
+        String[] lines = result.getResponse().getContentAsString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].contains(room1));
+        assertTrue(lines[1].contains("Room2"));
+    }
+
+    @Order(20)
+    @Test
+    public void calendarAnswersAvailabilityFromBookingEvents() throws Exception {
+        int idRoom1 = roomRepository.getAllByCapacity(10).get(0).getId();
+        LocalDateTime bookingStart = LocalDateTime.of(2021, 12, 1,
+                9, 0, 0);
+        LocalDateTime bookingEnd = LocalDateTime.of(2021, 12, 1,
+                10, 0, 0);
+
+        // The calendar is incomplete until the Booking service has sent a snapshot
+        this.mvc.perform(get("/search/free")
+                        .param("from", bookingStart.toString())
+                        .param("to", bookingStart.plusHours(3).toString())
+                        .param("minutes", "30"))
+                .andExpect(status().isServiceUnavailable());
+        this.mvc.perform(post("/search/bookings/sync")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new ArrayList<Booking>())))
+                .andExpect(status().isOk());
+
+        this.mvc.perform(post("/search/bookings/events")
+                        .param("roomId", String.valueOf(idRoom1))
+                        .param(startsAtString, bookingStart.toString())
+                        .param(endsAtString, bookingEnd.toString())
+                        .param("type", "created"))
+                .andExpect(status().isOk());
+
+        ReflectionTestUtils.setField(roomSearchController, "availabilitySource", "calendar");
+        try {
+            // Room1 is booked on December 1st, without asking the Booking service
+            List<Room> emptyList = new ArrayList<>();
+            this.mvc.perform(get(searchallcriteria)
+                            .param(startsAtString, bookingStart.plusMinutes(20).toString())
+                            .param(endsAtString, bookingStart.plusMinutes(40).toString()))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.rooms").value(emptyList));
+
+            // but not at the same time a day later
+            this.mvc.perform(get(searchallcriteria)
+                            .param(startsAtString, bookingStart.plusDays(1).toString())
+                            .param(endsAtString, bookingEnd.plusDays(1).toString()))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath(roomsname0).value(room1));
+            bookingMockServer.verify(0, getRequestedFor(urlPathMatching(url + ".*")));
+        } finally {
+            ReflectionTestUtils.setField(roomSearchController, "availabilitySource",
+                    "booking-service");
+        }
+
+        // Room1 is free for half an hour from the end of the booking
+        this.mvc.perform(get("/search/free")
+                        .param("from", bookingStart.toString())
+                        .param("to", bookingStart.plusHours(3).toString())
+                        .param("minutes", "30")
+                        .param("count", "1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.rooms[0].room.name").value(room1))
+                .andExpect(jsonPath("$.rooms[0].startsAt").value(bookingEnd.toString() + ":00"));
+
+        // After cancelling the booking it is free right away
+        this.mvc.perform(post("/search/bookings/events")
+                        .param("roomId", String.valueOf(idRoom1))
+                        .param(startsAtString, bookingStart.toString())
+                        .param(endsAtString, bookingEnd.toString())
+                        .param("type", "cancelled"))
+                .andExpect(status().isOk());
+        this.mvc.perform(get("/search/free")
+                        .param("from", bookingStart.toString())
+                        .param("to", bookingStart.plusHours(3).toString())
+                        .param("minutes", "30"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.rooms[0].startsAt").value(bookingStart.toString() + ":00"));
+
+        // Cancelling a booking keeps the slot it shares with another booking booked
+        LocalDateTime noon = bookingStart.plusHours(3);
+        List<Booking> snapshot = new ArrayList<>();
+        snapshot.add(new Booking(idRoom1, noon, noon.plusMinutes(20)));
+        snapshot.add(new Booking(idRoom1, noon.plusMinutes(20), noon.plusHours(1)));
+        this.mvc.perform(post("/search/bookings/sync")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(snapshot)))
+                .andExpect(status().isOk());
+        this.mvc.perform(post("/search/bookings/events")
+                        .param("roomId", String.valueOf(idRoom1))
+                        .param(startsAtString, noon.toString())
+                        .param(endsAtString, noon.plusMinutes(20).toString())
+                        .param("type", "cancelled"))
+                .andExpect(status().isOk());
+        this.mvc.perform(get("/search/free")
+                        .param("from", noon.toString())
+                        .param("to", noon.plusHours(2).toString())
+                        .param("minutes", "30"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.rooms[0].startsAt")
+                        .value(noon.plusHours(1).toString() + ":00"));
+
+        // Periods longer than the maximum window are rejected
+        this.mvc.perform(get("/search/free")
+                        .param("from", noon.toString())
+                        .param("to", noon.plusDays(60).toString())
+                        .param("minutes", "30"))
+                .andExpect(status().isBadRequest());
+        this.mvc.perform(post("/search/bookings/events")
+                        .param("roomId", String.valueOf(idRoom1))
+                        .param(startsAtString, noon.toString())
+                        .param(endsAtString, noon.plusDays(60).toString())
+                        .param("type", "created"))
+                .andExpect(status().isBadRequest());
+
+        // A day later, the first change drops the bookings of December 1st
+        ReflectionTestUtils.setField(roomCalendar, "clock", clockAt(noon.plusDays(1)));
+        assertFalse(roomCalendar.covers(noon));
+        assertFalse(roomCalendar.isFree(idRoom1, noon.plusMinutes(20), noon.plusHours(1)));
+        roomCalendar.book(idRoom1, noon.plusDays(2), noon.plusDays(2).plusHours(1));
+        assertTrue(roomCalendar.isFree(idRoom1, noon.plusMinutes(20), noon.plusHours(1)));
+        assertFalse(roomCalendar.isFree(idRoom1, noon.plusDays(2), noon.plusDays(2)
+                .plusMinutes(15)));
+    }
+
+    @Order(21)
+    @Test
+    public void bulkSearchChecksEveryTimeSlotOnce() throws Exception {
+        LocalTime start = LocalTime.of(8, 0);
+        LocalTime end = LocalTime.of(10, 0);
+        Building building = new Building(pulse, start, end);
+        buildingRepository.saveAndFlush(building);
+        Room room = new Room(room3, 4, building);
+        roomRepository.saveAndFlush(room);
+
+        // Mock a valid response from the Booking service for both rooms
+        Map<String, Iterable<Integer>> body = new HashMap<>();
+        List<Integer> ids = new ArrayList<>();
+        int idRoom1 = roomRepository.getAllByCapacity(10).get(0).getId();
+        ids.add(idRoom1);
+        ids.add(idRoom1 + 1);
+        body.put(availableRooms, ids);
+        configureFor(BOOKING_PORT);
+        stubFor(WireMock.get(urlPathMatching(url + ".*"))
+                .willReturn(okJson(body.toString())));
+
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
+                9, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1,
+                9, 40, 0);
+        List<SearchQuery> queries = Arrays.asList(
+                new SearchQuery(10, null, startsAt, endsAt, null),
+                new SearchQuery(null, pulse, startsAt, endsAt, null),
+                new SearchQuery(null, null, startsAt.plusHours(1), endsAt.plusHours(1), null),
+                new SearchQuery(4, null, null, null, null),
+                new SearchQuery(null, null, startsAt.minusMinutes(50), null, null));
+
+        this.mvc.perform(post("/search/bulk")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(queries)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.results[0].rooms[0].name").value(room1))
+                .andExpect(jsonPath("$.results[0].rooms[1]").doesNotHaveJsonPath())
+                .andExpect(jsonPath("$.results[1].rooms[0].name").value(room3))
+                .andExpect(jsonPath("$.results[1].rooms[1]").doesNotHaveJsonPath())
+                // Pulse is closed from 10:00
+                .andExpect(jsonPath("$.results[2].rooms[0].name").value(room1))
+                .andExpect(jsonPath("$.results[2].rooms[1]").doesNotHaveJsonPath())
+                .andExpect(jsonPath("$.results[3].rooms[0].name").value(room1))
+                .andExpect(jsonPath("$.results[3].rooms[1].name").value(room3))
+                // Only Pulse is open at 8:30, a start time alone is not checked for bookings
+                .andExpect(jsonPath("$.results[4].rooms[0].name").value(room3))
+                .andExpect(jsonPath("$.results[4].rooms[1]").doesNotHaveJsonPath());
+
+        // One request for each of the two distinct time slots
+        bookingMockServer.verify(2, getRequestedFor(urlPathMatching(url + ".*")));
+        bookingMockServer.verify(1, getRequestedFor(urlPathEqualTo(url + idRoom1 + ","
+                + (idRoom1 + 1))));
+    }
+
+    @Order(22)
+    @Test
+    public void bulkSearchRejectsTooManyQueries() throws Exception {
+        List<SearchQuery> queries = new ArrayList<>();
+        for (int i = 0; i <= 50; i++) {
+            queries.add(new SearchQuery(i, null, null, null, null));
+        }
+
+        this.mvc.perform(post("/search/bulk")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(queries)))
+                .andExpect(status().isPayloadTooLarge());
+    }
+
+    @Order(23)
+    @Test
+    public void slowBookingServiceIsHandledByDegradedMode() throws Exception {
+        // Mock a Booking service that answers after the read timeout
+        configureFor(BOOKING_PORT);
+        stubFor(WireMock.get(urlPathMatching(url + ".*"))
+                .willReturn(okJson("{availableRooms=[]}").withFixedDelay(3000)));
+
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
+                9, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1,
+                9, 40, 0);
+
+        // By default the search fails fast
+        this.mvc.perform(get(searchallcriteria)
+                        .param(startsAtString, startsAt.toString())
+                        .param(endsAtString, endsAt.toString()))
+                .andExpect(status().isServiceUnavailable());
+
+        // In the unfiltered mode the rooms are returned without availability check
+        ReflectionTestUtils.setField(roomSearchController, "degradedMode", "unfiltered");
+        try {
+            this.mvc.perform(get(searchallcriteria)
+                            .param(startsAtString, startsAt.toString())
+                            .param(endsAtString, endsAt.toString()))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath(roomsname0).value(room1))
+                    .andExpect(jsonPath("$.availabilityUnknown").value(true));
+
+            // A streamed room of which the availability is unknown is marked as such
+            MvcResult result = this.mvc.perform(get(searchallcriteria + "/stream")
+                            .param(startsAtString, startsAt.toString())
+                            .param(endsAtString, endsAt.toString()))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+            this.mvc.perform(asyncDispatch(result))
+                    .andExpect(status().isOk());
+            String[] lines = result.getResponse().getContentAsString().split("\n");
+            assertEquals(1, lines.length);
+            assertTrue(lines[0].contains(room1));
+            assertTrue(lines[0].contains("\"availabilityUnknown\":true"));
+        } finally {
+            ReflectionTestUtils.setField(roomSearchController, "degradedMode", "fail");
+        }
+
+        // Once the stream has started, the fail mode ends it with an error line
+        MvcResult result = this.mvc.perform(get(searchallcriteria + "/stream")
+                        .param(startsAtString, startsAt.toString())
+                        .param(endsAtString, endsAt.toString()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        this.mvc.perform(asyncDispatch(result))
+                .andExpect(status().isOk());
+        String[] lines = result.getResponse().getContentAsString().split("\n");
+        assertEquals(1, lines.length);
+        assertTrue(lines[0].startsWith("{\"error\":"));
+    }
+
+    @Order(24)
+    @Test
+    public void erroringBookingServiceOpensCircuitBreakerUntilRecovered() throws Exception {
+        // Mock a failing Booking service
+        configureFor(BOOKING_PORT);
+        stubFor(WireMock.get(urlPathMatching(url + ".*"))
+                .willReturn(WireMock.serverError()));
+
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
+                9, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1,
+                9, 40, 0);
+
+        // After five failures the breaker opens and the Booking service is left alone
+        for (int i = 0; i < 7; i++) {
+            this.mvc.perform(get(searchallcriteria)
+                            .param(startsAtString, startsAt.toString())
+                            .param(endsAtString, endsAt.toString()))
+                    .andExpect(status().isServiceUnavailable());
+        }
+        bookingMockServer.verify(5, getRequestedFor(urlPathMatching(url + ".*")));
+        assertEquals(BookingCircuitBreaker.State.OPEN.ordinal(),
+                meterRegistry.get("room.search.booking.breaker.state").gauge().value());
+
+        // An open breaker fails a stream before it starts
+        this.mvc.perform(get(searchallcriteria + "/stream")
+                        .param(startsAtString, startsAt.toString())
+                        .param(endsAtString, endsAt.toString()))
+                .andExpect(status().isServiceUnavailable());
+
+        // Once the open period has passed, a successful trial call closes the breaker
+        Map<String, Iterable<Integer>> body = new HashMap<>();
+        List<Integer> ids = new ArrayList<>();
+        int idRoom1 = roomRepository.getAllByCapacity(10).get(0).getId();
+        ids.add(idRoom1);
+        body.put(availableRooms, ids);
+        bookingMockServer.resetAll();
+        createStubJson(BOOKING_PORT, url + idRoom1, body);
+        ReflectionTestUtils.setField(circuitBreaker, "openMillis", 100L);
+        try {
+            Thread.sleep(200);
+            this.mvc.perform(get(searchallcriteria)
+                            .param(startsAtString, startsAt.toString())
+                            .param(endsAtString, endsAt.toString()))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath(roomsname0).value(room1));
+        } finally {
+            ReflectionTestUtils.setField(circuitBreaker, "openMillis", 30_000L);
+        }
+        assertEquals(BookingCircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+        // The late answer of a call granted before the breaker opened does not close it
+        BookingCircuitBreaker.Permit late = circuitBreaker.tryAcquire();
+        for (int i = 0; i < 5; i++) {
+            circuitBreaker.recordFailure(circuitBreaker.tryAcquire());
+        }
+        assertEquals(BookingCircuitBreaker.State.OPEN, circuitBreaker.getState());
+        circuitBreaker.recordSuccess(late);
+        assertEquals(BookingCircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Order(25)
+    @Test
+    public void concurrentRequestsWithSameTokenCallUserServiceOnce() throws Exception {
+        // Mock a slow User service, so all requests arrive while the first is loading
+        WireMockServer userMockServer = new WireMockServer(USER_PORT);
+        userMockServer.start();
+        ExecutorService clients = Executors.newFixedThreadPool(16);
+        ReflectionTestUtils.setField(authenticationConfiguration, "required", true);
+        try {
+            userMockServer.stubFor(WireMock.any(anyUrl())
+                    .willReturn(okJson("{}").withFixedDelay(300)));
+            tokenCache.invalidateAll();
+
+            // Every search goes through the token interceptor, the caching validator
+            // and the AuthenticationValidator, which calls the User service
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> searches = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                searches.add(clients.submit(() -> {
+                    start.await();
+                    return this.mvc.perform(get(searchallcriteria)
+                                    .header(HttpHeaders.AUTHORIZATION, "Bearer token-25"))
+                            .andReturn().getResponse().getStatus();
+                }));
+            }
+            start.countDown();
+            for (Future<Integer> search : searches) {
+                assertEquals(HttpStatus.OK.value(), search.get());
+            }
+            userMockServer.verify(1, anyRequestedFor(anyUrl()));
+            this.mvc.perform(get(searchallcriteria)
+                            .header(HttpHeaders.AUTHORIZATION, "Bearer token-25"))
+                    .andExpect(status().isOk());
+            userMockServer.verify(1, anyRequestedFor(anyUrl()));
+
+            // Rejected tokens are not cached
+            assertFalse(tokenCache.validate("test", "token-rejected", token -> false));
+            assertTrue(tokenCache.validate("test", "token-rejected", token -> true));
+
+            // A search without a token is rejected
+            this.mvc.perform(get(searchallcriteria))
+                    .andExpect(status().isUnauthorized());
+
+            // A callback of the Booking service needs the service token
+            ReflectionTestUtils.setField(authenticationConfiguration, "serviceToken",
+                    "service-25");
+            this.mvc.perform(post("/search/bookings/sync")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content("[]"))
+                    .andExpect(status().isUnauthorized());
+            this.mvc.perform(post("/search/bookings/sync")
+                            .header(HttpHeaders.AUTHORIZATION, "Bearer service-25")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content("[]"))
+                    .andExpect(status().isOk());
+        } finally {
+            ReflectionTestUtils.setField(authenticationConfiguration, "required", false);
+            ReflectionTestUtils.setField(authenticationConfiguration, "serviceToken", "");
+            clients.shutdown();
+            userMockServer.stop();
+        }
+    }
+
+    @Order(26)
+    @Test
+    public void criteriaQueryFindsSameRoomsAsRepositoryQuery() {
+        LocalTime start = LocalTime.of(8, 0);
+        LocalTime end = LocalTime.of(22, 0);
+        Building building = new Building(pulse, start, end);
+        buildingRepository.saveAndFlush(building);
+        Room room = new Room(room3, 4, building);
+        roomRepository.saveAndFlush(room);
+        equipmentRepository.saveAndFlush(new Equipment(room, whiteboard));
+        equipmentRepository.saveAndFlush(new Equipment(room, computer));
+        Room room2 = new Room("Room2", 40, building);
+        roomRepository.saveAndFlush(room2);
+        equipmentRepository.saveAndFlush(new Equipment(room2, whiteboard));
+
+        List<List<String>> equipmentLists = Arrays.asList(null, Arrays.asList(computer),
+                Arrays.asList(whiteboard, computer));
+        List<LocalTime> times = Arrays.asList(null, LocalTime.of(8, 30), LocalTime.of(19, 30));
+        for (Integer minimum : Arrays.asList(null, 5)) {
+            for (String buildingName : Arrays.asList(null, ewi, pulse)) {
+                for (LocalTime time : times) {
+                    for (List<String> equipment : equipmentLists) {
+                        long size = equipment == null ? 0 : equipment.size();
+                        ReflectionTestUtils.setField(roomSearchIndex, "query", "repository");
+                        List<Room> expected = roomSearchIndex.getAllByAllCriteria(minimum,
+                                buildingName, time, time, equipment, size);
+                        ReflectionTestUtils.setField(roomSearchIndex, "query", "criteria");
+                        List<Room> actual = roomSearchIndex.getAllByAllCriteria(minimum,
+                                buildingName, time, time, equipment, size);
+                        assertEquals(expected.stream().map(Room::getId).sorted()
+                                        .collect(Collectors.toList()),
+                                actual.stream().map(Room::getId).collect(Collectors.toList()));
+                    }
+                }
+            }
+        }
+    }
+
+    @Order(27)
+    @Test
+    public void bestFitSearchChecksOnlyTopRoomsAndRefillsBookedOnes() throws Exception {
+        Building building = roomRepository.getAllByCapacity(10).get(0).getBuilding();
+        Room room4 = roomRepository.saveAndFlush(new Room("Room4", 4, building));
+        Room room5 = roomRepository.saveAndFlush(new Room("Room5", 5, building));
+        roomRepository.saveAndFlush(new Room("Room6", 100, building));
+        Room room7 = roomRepository.saveAndFlush(new Room("Room7", 6, building));
+
+        // Room4 fits best, but the Booking service reports it as booked
+        Map<String, Iterable<Integer>> body = new HashMap<>();
+        body.put(availableRooms, Arrays.asList(room5.getId(), room7.getId()));
+        configureFor(BOOKING_PORT);
+        stubFor(WireMock.get(urlPathMatching(url + ".*"))
+                .willReturn(okJson(body.toString())));
+
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
+                9, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1,
+                9, 40, 0);
+
+        this.mvc.perform(get(searchallcriteria)
+                        .param(capacity, "4")
+                        .param("sort", "bestFit")
+                        .param("limit", "2")
+                        .param(startsAtString, startsAt.toString())
+                        .param(endsAtString, endsAt.toString()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath(roomsname0).value("Room5"))
+                .andExpect(jsonPath(roomsname1).value("Room7"))
+                .andExpect(jsonPath("$.rooms.length()").value(2));
+
+        // Only the two best rooms were checked, then the next best to replace Room4
+        bookingMockServer.verify(2, getRequestedFor(urlPathMatching(url + ".*")));
+        bookingMockServer.verify(getRequestedFor(
+                urlPathEqualTo(url + room4.getId() + "," + room5.getId())));
+        bookingMockServer.verify(getRequestedFor(urlPathEqualTo(url + room7.getId())));
+
+        // Without an overflow only Room4 and Room5 are kept, so Room7 is found
+        // by scrolling through the rooms after Room5 again
+        ReflectionTestUtils.setField(roomSearchController, "bestFitOverflow", 0);
+        try {
+            this.mvc.perform(get(searchallcriteria)
+                            .param(capacity, "4")
+                            .param("sort", "bestFit")
+                            .param("limit", "2")
+                            .param(startsAtString, startsAt.toString())
+                            .param(endsAtString, endsAt.toString()))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath(roomsname0).value("Room5"))
+                    .andExpect(jsonPath(roomsname1).value("Room7"))
+                    .andExpect(jsonPath("$.rooms.length()").value(2));
+        } finally {
+            ReflectionTestUtils.setField(roomSearchController, "bestFitOverflow", 100);
+        }
+
+        // Preferred equipment outweighs a few extra seats
+        this.mvc.perform(get(searchallcriteria)
+                        .param(capacity, "4")
+                        .param("sort", "bestFit")
+                        .param("limit", "1")
+                        .param("preferredEquipment", computer))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath(roomsname0).value(room1));
+    }
+
+    @Order(28)
+    @Test
+    public void unchangedSearchAnswersNotModifiedWithoutQueries() throws Exception {
+        // Mock a valid response from the Booking service
+        Map<String, Iterable<Integer>> body = new HashMap<>();
+        List<Integer> ids = new ArrayList<>();
+        int idRoom1 = roomRepository.getAllByCapacity(10).get(0).getId();
+        ids.add(idRoom1);
+        body.put(availableRooms, ids);
+        createStubJson(BOOKING_PORT, url + idRoom1, body);
+
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
+                9, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1,
+                9, 40, 0);
+
+        // An invalid search is rejected, whatever ETag the client has
+        this.mvc.perform(get(searchallcriteria)
+                        .param("limit", "0")
+                        .header(HttpHeaders.IF_NONE_MATCH, "*"))
+                .andExpect(status().isBadRequest());
+
+        // The Booking service does not report its changes, so its answer gets no ETag
+        this.mvc.perform(get(searchallcriteria)
+                        .param(startsAtString, startsAt.toString())
+                        .param(endsAtString, endsAt.toString())
+                        .header(HttpHeaders.IF_NONE_MATCH, "*"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath(roomsname0).value(room1))
+                .andExpect(header().doesNotExist(HttpHeaders.ETAG));
+
+        this.mvc.perform(post("/search/bookings/sync")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(new ArrayList<Booking>())))
+                .andExpect(status().isOk());
+        ReflectionTestUtils.setField(roomSearchController, "availabilitySource", "calendar");
+        try {
+            String etag = this.mvc.perform(get(searchallcriteria)
+                            .param(startsAtString, startsAt.toString())
+                            .param(endsAtString, endsAt.toString()))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath(roomsname0).value(room1))
+                    .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+            assertNotNull(etag);
+
+            // Nothing changed, so neither the database nor the calendar is asked
+            Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class)
+                    .getStatistics();
+            statistics.setStatisticsEnabled(true);
+            statistics.clear();
+            this.mvc.perform(get(searchallcriteria)
+                            .param(startsAtString, startsAt.toString())
+                            .param(endsAtString, endsAt.toString())
+                            .header(HttpHeaders.IF_NONE_MATCH, etag))
+                    .andExpect(status().isNotModified())
+                    .andExpect(content().string(""));
+            assertEquals(0, statistics.getPrepareStatementCount());
+            statistics.setStatisticsEnabled(false);
+
+            // A booking changes the calendar, so the search is run again
+            this.mvc.perform(post("/search/bookings/events")
+                            .param("roomId", String.valueOf(idRoom1))
+                            .param(startsAtString, startsAt.toString())
+                            .param(endsAtString, endsAt.toString())
+                            .param("type", "created"))
+                    .andExpect(status().isOk());
+            String newEtag = this.mvc.perform(get(searchallcriteria)
+                            .param(startsAtString, startsAt.toString())
+                            .param(endsAtString, endsAt.toString())
+                            .header(HttpHeaders.IF_NONE_MATCH, etag))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.rooms").isEmpty())
+                    .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+            assertNotNull(newEtag);
+            assertNotEquals(etag, newEtag);
+        } finally {
+            ReflectionTestUtils.setField(roomSearchController, "availabilitySource",
+                    "booking-service");
+        }
+        bookingMockServer.verify(1, getRequestedFor(urlPathMatching(url + ".*")));
+
+        // Every encoding of the same result has its own ETag
+        String jsonEtag = this.mvc.perform(get(searchallcriteria)
+                        .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertNotNull(jsonEtag);
+        MediaType cbor = MediaType.parseMediaType("application/cbor");
+        String cborEtag = this.mvc.perform(get(searchallcriteria)
+                        .accept(cbor)
+                        .header(HttpHeaders.IF_NONE_MATCH, jsonEtag))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(cbor))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        assertNotEquals(jsonEtag, cborEtag);
+        this.mvc.perform(get(searchallcriteria)
+                        .accept(cbor)
+                        .header(HttpHeaders.IF_NONE_MATCH, cborEtag))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT));
+    }
+
+    @Order(29)
+    @Test
+    public void projectedSearchReadsOnlyFieldsInBinaryFormat() throws Exception {
+        // Mock a valid response from the Booking service
+        Map<String, Iterable<Integer>> body = new HashMap<>();
+        List<Integer> ids = new ArrayList<>();
+        int idRoom1 = roomRepository.getAllByCapacity(10).get(0).getId();
+        ids.add(idRoom1);
+        body.put(availableRooms, ids);
+        createStubJson(BOOKING_PORT, url + idRoom1, body);
+
+        // The projection does not load any room or building
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class)
+                .getStatistics();
+        statistics.setStatisticsEnabled(true);
+        statistics.clear();
+        this.mvc.perform(get(searchallcriteria)
+                        .param("fields", "name", "buildingName"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.rooms[0].id").value(idRoom1))
+                .andExpect(jsonPath(roomsname0).value(room1))
+                .andExpect(jsonPath("$.rooms[0].buildingName").value(ewi))
+                .andExpect(jsonPath("$.rooms[0].capacity").doesNotExist());
+        assertEquals(0, statistics.getEntityLoadCount());
+        statistics.setStatisticsEnabled(false);
+
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1,
+                9, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1,
+                9, 40, 0);
+        MediaType cbor = MediaType.parseMediaType("application/cbor");
+        byte[] response = this.mvc.perform(get(searchallcriteria)
+                        .param("fields", "capacity")
+                        .param(startsAtString, startsAt.toString())
+                        .param(endsAtString, endsAt.toString())
+                        .accept(cbor))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(cbor))
+                .andReturn().getResponse().getContentAsByteArray();
+        JsonNode rooms = new ObjectMapper(new CBORFactory()).readTree(response).get("rooms");
+        assertEquals(1, rooms.size());
+        assertEquals(idRoom1, rooms.get(0).get("id").asInt());
+        assertEquals(10, rooms.get(0).get(capacity).asInt());
+        assertNull(rooms.get(0).get("name"));
+
+        this.mvc.perform(get(searchallcriteria)
+                        .param("fields", "floor"))
+                .andExpect(status().isBadRequest());
+    }
+
     /**
      * Create a stub at given port for given url. Will return the given body as JSON.
      *
@@ -326,10 +1507,70 @@ public class RoomControllerTest {
         configureFor(port);
         stubFor(
                 WireMock.get(
-                        urlEqualTo(url))
+                        urlPathEqualTo(url))
                         .willReturn(
                                 okJson(body.toString())
                         )
         );
     }
+
+    @Order(30)
+    @Test
+    public void searchIndexFindsSameRoomsAsCriteriaQuery() {
+        LocalTime start = LocalTime.of(8, 0);
+        LocalTime end = LocalTime.of(22, 0);
+        Building building = new Building(pulse, start, end);
+        buildingRepository.saveAndFlush(building);
+        Room room = new Room(room3, 4, building);
+        roomRepository.saveAndFlush(room);
+        equipmentRepository.saveAndFlush(new Equipment(room, whiteboard));
+        equipmentRepository.saveAndFlush(new Equipment(room, computer));
+        Room room2 = new Room("Room2", 40, building);
+        roomRepository.saveAndFlush(room2);
+        Equipment firstWhiteboard = equipmentRepository.saveAndFlush(
+                new Equipment(room2, whiteboard));
+        Equipment secondWhiteboard = equipmentRepository.saveAndFlush(
+                new Equipment(room2, whiteboard));
+
+        List<List<String>> equipmentLists = Arrays.asList(null, Arrays.asList(computer),
+                Arrays.asList(whiteboard), Arrays.asList(whiteboard, computer));
+        List<LocalTime> times = Arrays.asList(null, LocalTime.of(8, 30), LocalTime.of(19, 30));
+        ReflectionTestUtils.setField(roomSearchIndex, "mode", "index");
+        try {
+            for (int removed = 0; removed < 3; removed++) {
+                if (removed == 1) {
+                    // Room2 keeps its other whiteboard
+                    equipmentRepository.delete(firstWhiteboard);
+                } else if (removed == 2) {
+                    equipmentRepository.delete(secondWhiteboard);
+                }
+                for (Integer minimum : Arrays.asList(null, 5)) {
+                    for (String buildingName : Arrays.asList(null, ewi, pulse)) {
+                        for (LocalTime time : times) {
+                            for (List<String> equipment : equipmentLists) {
+                                long size = equipment == null ? 0 : equipment.size();
+                                ReflectionTestUtils.setField(roomSearchIndex, "mode",
+                                        "database");
+                                List<Room> expected = roomSearchIndex.getAllByAllCriteria(
+                                        minimum, buildingName, time, time, equipment, size);
+                                ReflectionTestUtils.setField(roomSearchIndex, "mode", "index");
+                                List<Room> actual = roomSearchIndex.getAllByAllCriteria(
+                                        minimum, buildingName, time, time, equipment, size);
+                                assertEquals(expected.stream().map(Room::getId).sorted()
+                                                .collect(Collectors.toList()),
+                                        actual.stream().map(Room::getId)
+                                                .collect(Collectors.toList()));
+                            }
+                        }
+                    }
+                }
+            }
+
+            // There is no page after the largest possible ID
+            assertTrue(roomSearchIndex.getPageByAllCriteria(null, null, null, null, null,
+                    Integer.MAX_VALUE, 10).isEmpty());
+        } finally {
+            ReflectionTestUtils.setField(roomSearchIndex, "mode", "database");
+        }
+    }
 }
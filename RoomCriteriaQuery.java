@@ -0,0 +1,260 @@
+package nl.tudelft.sem.roomapp.repository;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Tuple;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import javax.persistence.criteria.Subquery;
+import nl.tudelft.sem.roomapp.models.Building;
+import nl.tudelft.sem.roomapp.models.Equipment;
+import nl.tudelft.sem.roomapp.models.Room;
+import nl.tudelft.sem.roomapp.models.RoomView;
+import org.hibernate.jpa.QueryHints;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * The room search of {@link RoomRepository#getAllByAllCriteria}, composed from
+ * the given criteria only. Absent criteria are left out of the SQL instead of
+ * being matched with "is null or", and every desired piece of equipment is an
+ * EXISTS on the equipment of the room instead of a GROUP BY over all equipment,
+ * so the database can use the indexes on every criterion.
+ */
+@Repository
+public class RoomCriteriaQuery {
+
+    private static final String ID = "id";
+    private static final String NAME = "name";
+    private static final String CAPACITY = "capacity";
+    private static final String BUILDING = "building";
+    private static final String OPENING_TIME = "openingTime";
+    private static final String CLOSING_TIME = "closingTime";
+    private static final String ROOM = "room";
+    private static final int MAX_IN_VALUES = 1000;
+
+    @PersistenceContext
+    private transient EntityManager entityManager;
+
+    /**
+     * Get the rooms that meet the given criteria. A null criterion is not checked.
+     *
+     * @param capacity     the minimum capacity of the room
+     * @param buildingName the name of the building of the room
+     * @param start        the time from which the building must be open
+     * @param end          the time until which the building must be open
+     * @param equipment    the equipment the room must all have
+     * @return the rooms that meet the criteria, ordered by ID
+     */
+    public List<Room> getAllByAllCriteria(Integer capacity, String buildingName,
+                                          LocalTime start, LocalTime end,
+                                          List<String> equipment) {
+        return entityManager.createQuery(roomQuery(capacity, buildingName, start, end,
+                equipment, null)).getResultList();
+    }
+
+    /**
+     * Get one page of the rooms that meet the given criteria. The cursor and the
+     * limit are part of the query, so only the rooms on the page are read.
+     *
+     * @param capacity     the minimum capacity of the room
+     * @param buildingName the name of the building of the room
+     * @param start        the time from which the building must be open
+     * @param end          the time until which the building must be open
+     * @param equipment    the equipment the room must all have
+     * @param after        only rooms with a larger ID are read, or null for the first page
+     * @param limit        the maximum number of rooms to read
+     * @return the rooms that meet the criteria, ordered by ID
+     */
+    public List<Room> getPageByAllCriteria(Integer capacity, String buildingName,
+                                           LocalTime start, LocalTime end,
+                                           List<String> equipment, Integer after, int limit) {
+        return entityManager.createQuery(roomQuery(capacity, buildingName, start, end,
+                equipment, after)).setMaxResults(limit).getResultList();
+    }
+
+    /**
+     * Read the rooms that meet the given criteria through a database cursor and
+     * pass them on in chunks. The persistence context is cleared after every
+     * chunk, so only one chunk of rooms is held in memory at a time.
+     *
+     * @param capacity     the minimum capacity of the room
+     * @param buildingName the name of the building of the room
+     * @param start        the time from which the building must be open
+     * @param end          the time until which the building must be open
+     * @param equipment    the equipment the room must all have
+     * @param chunkSize    the number of rooms in a chunk
+     * @param consumer     receives every chunk of rooms, ordered by ID
+     * @return the number of rooms that meet the criteria
+     */
+    @Transactional(readOnly = true)
+    public int scrollByAllCriteria(Integer capacity, String buildingName,
+                                   LocalTime start, LocalTime end, List<String> equipment,
+                                   int chunkSize, Consumer<List<Room>> consumer) {
+        int count = 0;
+        List<Room> chunk = new ArrayList<>(chunkSize);
+        try (Stream<Room> rooms = entityManager.createQuery(roomQuery(capacity, buildingName,
+                start, end, equipment, null))
+                .setHint(QueryHints.HINT_FETCH_SIZE, chunkSize)
+                .getResultStream()) {
+            Iterator<Room> iterator = rooms.iterator();
+            while (iterator.hasNext()) {
+                chunk.add(iterator.next());
+                count++;
+                if (chunk.size() == chunkSize) {
+                    consumer.accept(chunk);
+                    chunk = new ArrayList<>(chunkSize);
+                    entityManager.clear();
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            consumer.accept(chunk);
+        }
+        return count;
+    }
+
+    /**
+     * Get only the given fields of the rooms that meet the given criteria,
+     * without loading the rooms or their buildings. A null criterion is not checked.
+     *
+     * @param capacity     the minimum capacity of the room
+     * @param buildingName the name of the building of the room
+     * @param start        the time from which the building must be open
+     * @param end          the time until which the building must be open
+     * @param equipment    the equipment the room must all have
+     * @param fields       the fields of {@link RoomView} to read, the ID is always read
+     * @return the projections of the rooms that meet the criteria, ordered by ID
+     */
+    public List<RoomView> getViewsByAllCriteria(Integer capacity, String buildingName,
+                                                LocalTime start, LocalTime end,
+                                                List<String> equipment,
+                                                Collection<String> fields) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = builder.createTupleQuery();
+        Root<Room> room = query.from(Room.class);
+        boolean readBuilding = fields.contains(RoomView.BUILDING_NAME);
+        Join<Room, Building> building = readBuilding || buildingName != null
+                || start != null || end != null ? room.join(BUILDING) : null;
+
+        List<Selection<?>> selections = new ArrayList<>();
+        selections.add(room.get(ID).alias(RoomView.ID));
+        if (fields.contains(RoomView.NAME)) {
+            selections.add(room.get(NAME).alias(RoomView.NAME));
+        }
+        if (fields.contains(RoomView.CAPACITY)) {
+            selections.add(room.get(CAPACITY).alias(RoomView.CAPACITY));
+        }
+        if (readBuilding) {
+            selections.add(building.get(NAME).alias(RoomView.BUILDING_NAME));
+        }
+
+        query.multiselect(selections)
+                .where(predicates(builder, query, room, building, capacity, buildingName,
+                        start, end, equipment))
+                .orderBy(builder.asc(room.get(ID)));
+
+        List<RoomView> views = new ArrayList<>();
+        for (Tuple row : entityManager.createQuery(query).getResultList()) {
+            views.add(new RoomView(row.get(RoomView.ID, Integer.class),
+                    fields.contains(RoomView.NAME)
+                            ? row.get(RoomView.NAME, String.class) : null,
+                    fields.contains(RoomView.CAPACITY)
+                            ? row.get(RoomView.CAPACITY, Integer.class) : null,
+                    readBuilding ? row.get(RoomView.BUILDING_NAME, String.class) : null));
+        }
+        return views;
+    }
+
+    /**
+     * Count for each of the given rooms how many of the given pieces of equipment it has.
+     *
+     * @param equipment the names of the pieces of equipment
+     * @param roomIds   the IDs of the rooms to count the equipment of
+     * @return a map from the ID of every given room with any of the equipment to the count
+     */
+    public Map<Integer, Long> countEquipment(List<String> equipment,
+                                             Collection<Integer> roomIds) {
+        Map<Integer, Long> counts = new HashMap<>();
+        List<Integer> ids = new ArrayList<>(roomIds);
+        // Databases limit the number of values in an IN list
+        for (int i = 0; i < ids.size(); i += MAX_IN_VALUES) {
+            CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+            CriteriaQuery<Tuple> query = builder.createTupleQuery();
+            Root<Equipment> piece = query.from(Equipment.class);
+            query.multiselect(piece.get(ROOM).get(ID), builder.countDistinct(piece.get(NAME)))
+                    .where(piece.get(NAME).in(new LinkedHashSet<>(equipment)),
+                            piece.get(ROOM).get(ID).in(
+                                    ids.subList(i, Math.min(i + MAX_IN_VALUES, ids.size()))))
+                    .groupBy(piece.get(ROOM).get(ID));
+            for (Tuple count : entityManager.createQuery(query).getResultList()) {
+                counts.put(count.get(0, Integer.class), count.get(1, Long.class));
+            }
+        }
+        return counts;
+    }
+
+    private CriteriaQuery<Room> roomQuery(Integer capacity, String buildingName,
+                                          LocalTime start, LocalTime end,
+                                          List<String> equipment, Integer after) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Room> query = builder.createQuery(Room.class);
+        Root<Room> room = query.from(Room.class);
+        Join<Room, Building> building = buildingName != null || start != null || end != null
+                ? room.join(BUILDING) : null;
+
+        List<Predicate> predicates = new ArrayList<>(Arrays.asList(predicates(builder, query,
+                room, building, capacity, buildingName, start, end, equipment)));
+        if (after != null) {
+            predicates.add(builder.greaterThan(room.get(ID), after));
+        }
+        return query.select(room)
+                .where(predicates.toArray(new Predicate[0]))
+                .orderBy(builder.asc(room.get(ID)));
+    }
+
+    private Predicate[] predicates(CriteriaBuilder builder, CriteriaQuery<?> query,
+                                   Root<Room> room, Join<Room, Building> building,
+                                   Integer capacity, String buildingName,
+                                   LocalTime start, LocalTime end, List<String> equipment) {
+        List<Predicate> predicates = new ArrayList<>();
+        if (capacity != null) {
+            predicates.add(builder.greaterThanOrEqualTo(room.get(CAPACITY), capacity));
+        }
+        if (buildingName != null) {
+            predicates.add(builder.equal(building.get(NAME), buildingName));
+        }
+        if (start != null) {
+            predicates.add(builder.lessThanOrEqualTo(building.get(OPENING_TIME), start));
+        }
+        if (end != null) {
+            predicates.add(builder.greaterThanOrEqualTo(building.get(CLOSING_TIME), end));
+        }
+        if (equipment != null) {
+            for (String name : new LinkedHashSet<>(equipment)) {
+                Subquery<Integer> subquery = query.subquery(Integer.class);
+                Root<Equipment> piece = subquery.from(Equipment.class);
+                subquery.select(builder.literal(1))
+                        .where(builder.equal(piece.get(ROOM), room),
+                                builder.equal(piece.get(NAME), name));
+                predicates.add(builder.exists(subquery));
+            }
+        }
+        return predicates.toArray(new Predicate[0]);
+    }
+}
@@ -1,54 +1,285 @@
 package nl.tudelft.sem.roomapp.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
-import nl.tudelft.sem.roomapp.handlers.AdminValidator;
-import nl.tudelft.sem.roomapp.handlers.AuthenticationValidator;
-import nl.tudelft.sem.roomapp.handlers.RightsValidator;
+import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToIntFunction;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import nl.tudelft.sem.roomapp.models.AvailableRooms;
+import nl.tudelft.sem.roomapp.models.Booking;
 import nl.tudelft.sem.roomapp.models.Room;
-import nl.tudelft.sem.roomapp.repository.RoomRepository;
+import nl.tudelft.sem.roomapp.models.RoomView;
+import nl.tudelft.sem.roomapp.models.SearchQuery;
+import nl.tudelft.sem.roomapp.repository.RoomCriteriaQuery;
+import nl.tudelft.sem.roomapp.services.AvailabilityCache;
+import nl.tudelft.sem.roomapp.services.BestFitRanking;
+import nl.tudelft.sem.roomapp.services.BookingCircuitBreaker;
+import nl.tudelft.sem.roomapp.services.BookingServiceUnavailableException;
+import nl.tudelft.sem.roomapp.services.RoomCalendar;
+import nl.tudelft.sem.roomapp.services.RoomSearchIndex;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.client.RestClientResponseException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 
 @RestController
 @RequestMapping("/")
 public class RoomSearchController {
 
+    private static final String FILTERS = "filters";
+    private static final String CALENDAR = "calendar";
+    private static final String UNFILTERED = "unfiltered";
+    private static final String BULK_FILTERS = "bulk";
+    private static final String BEST_FIT = "bestFit";
+    private static final String AVAILABILITY_UNKNOWN = "availabilityUnknown";
+    private static final String BREAKER_REJECTED =
+            "The Booking service circuit breaker is open or its bulkhead is full";
+    private static final String BOOKING_FAILED = "The Booking service call failed";
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+    private static final HttpResponse.BodyHandler<AvailableRooms> AVAILABLE_ROOMS_HANDLER =
+            responseInfo -> responseInfo.statusCode() == HttpStatus.OK.value()
+                    ? HttpResponse.BodySubscribers.mapping(
+                            HttpResponse.BodySubscribers.ofByteArray(), AvailableRooms::parse)
+                    : HttpResponse.BodySubscribers.replacing(null);
+
+    @Autowired
+    private transient RoomSearchIndex roomSearchIndex;
+    @Autowired
+    private transient AvailabilityCache availabilityCache;
+    @Autowired
+    private transient RoomCalendar roomCalendar;
+    @Autowired
+    private transient BestFitRanking bestFitRanking;
+    @Autowired
+    private transient RoomCriteriaQuery roomCriteriaQuery;
     @Autowired
-    private transient RoomRepository roomRepository;
-    private transient AdminValidator adminValidator;
-    private transient RestTemplate restTemplate = new RestTemplate();
+    private transient BookingCircuitBreaker circuitBreaker;
+    @Autowired
+    private transient MeterRegistry meterRegistry;
+    @Autowired
+    private transient HttpClient httpClient;
+    @Autowired
+    private transient ObjectMapper objectMapper;
+    private transient RestTemplate restTemplate;
+
+    private transient ExecutorService bookingExecutor;
+    private transient ExecutorService bulkSearchExecutor;
+
+    @Value("${booking.url:http://localhost:8082}")
+    private transient String bookingUrl;
+    @Value("${booking.chunk-size:100}")
+    private transient int chunkSize;
+    @Value("${booking.parallelism:4}")
+    private transient int parallelism;
+    @Value("${booking.pool-size:20}")
+    private transient int bookingPoolSize;
+    @Value("${booking.search-timeout-ms:10000}")
+    private transient long searchTimeout;
+    @Value("${http.client.read-timeout-ms:2000}")
+    private transient long readTimeout;
+    @Value("${search.page.max-size:500}")
+    private transient int maxPageSize;
+    @Value("${search.best-fit.overflow:100}")
+    private transient int bestFitOverflow;
+    @Value("${search.stream.timeout-ms:60000}")
+    private transient long streamTimeout;
+    @Value("${availability.source:booking-service}")
+    private transient String availabilitySource;
+    @Value("${search.bulk.max-queries:50}")
+    private transient int maxBulkQueries;
+    @Value("${search.bulk.parallelism:4}")
+    private transient int bulkParallelism;
+    @Value("${booking.degraded-mode:fail}")
+    private transient String degradedMode;
 
-    RoomSearchController() {
-        (adminValidator = new AuthenticationValidator(restTemplate))
-                .setNext(new RightsValidator());
+    RoomSearchController(RestTemplate restTemplate) {
+        this.restTemplate = restTemplate;
+    }
+
+    @PostConstruct
+    void startBookingExecutor() {
+        if (chunkSize < 1 || parallelism < 1 || bookingPoolSize < 1 || bulkParallelism < 1) {
+            throw new IllegalStateException("booking.chunk-size, booking.parallelism,"
+                    + " booking.pool-size and search.bulk.parallelism must be positive");
+        }
+        // Shared by all searches; when it is busy, the request thread sends its chunks itself
+        bookingExecutor = new ThreadPoolExecutor(bookingPoolSize, bookingPoolSize,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(bookingPoolSize),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        // Bounded as well; when it is busy, the request thread checks its time slots itself
+        bulkSearchExecutor = new ThreadPoolExecutor(bulkParallelism, bulkParallelism,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(bulkParallelism),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @PreDestroy
+    void stopBookingExecutor() {
+        bookingExecutor.shutdown();
+        bulkSearchExecutor.shutdown();
     }
 
     /**
      * The end point /search/all_criteria can be used to request
      * a list of rooms that meet certain criteria.
      *
+     * @param capacity           the desired capacity of the room
+     * @param buildingName       the name of the desired building
+     * @param startsAt           start time of the desired time slot
+     * @param endsAt             end time of the desired time slot
+     * @param equipment          desired equipment available in the room
+     * @param limit              the maximum number of rooms to return, for a paginated
+     *                           search or a search sorted by best fit
+     * @param after              the cursor returned as "next" by the previous page
+     * @param sort               "bestFit" to return the best fitting rooms first
+     * @param preferredBuilding  the name of the building preferred by a best fit search
+     * @param preferredEquipment the equipment preferred by a best fit search
+     * @param fields             the fields of every room to return, instead of the whole room
+     * @param ifNoneMatch        the ETag of the result the client already has
+     * @param accept             the media types accepted by the client
+     * @return a list containing the room ids that meet the given criteria, or
+     *         304 Not Modified if the result has not changed since the given ETag
+     */
+    @GetMapping("/search/all-criteria")
+    ResponseEntity<Map<String, Object>> getRoomBySearchCriteria(
+            @RequestParam(name = "capacity", required = false)
+                    Integer capacity,
+            @RequestParam(name = "buildingName", required = false)
+                    String buildingName,
+            @RequestParam(name = "startsAt", required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+                    LocalDateTime startsAt,
+            @RequestParam(name = "endsAt", required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+                    LocalDateTime endsAt,
+            @RequestParam(name = "equipment", required = false)
+                    List<String> equipment,
+            @RequestParam(name = "limit", required = false)
+                    Integer limit,
+            @RequestParam(name = "after", required = false)
+                    Integer after,
+            @RequestParam(name = "sort", required = false)
+                    String sort,
+            @RequestParam(name = "preferredBuilding", required = false)
+                    String preferredBuilding,
+            @RequestParam(name = "preferredEquipment", required = false)
+                    List<String> preferredEquipment,
+            @RequestParam(name = "fields", required = false)
+                    List<String> fields,
+            @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false)
+                    String ifNoneMatch,
+            @RequestHeader(name = HttpHeaders.ACCEPT, required = false)
+                    String accept
+    ) {
+        validateSearch(limit, after, sort, fields);
+
+        // The result only changes when rooms or bookings change, so the ETag is
+        // known before the database and the Booking service are asked for it.
+        // The JSON, CBOR or Smile encoding is negotiated from the Accept header
+        // alone, so every encoding gets its own ETag
+        int criteria = Objects.hash(capacity, buildingName, startsAt, endsAt, equipment,
+                limit, after, sort, preferredBuilding, preferredEquipment, fields, accept);
+        String etag = searchEtag(startsAt, endsAt, criteria);
+        if (etag != null && matchesEtag(ifNoneMatch, etag)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).varyBy(HttpHeaders.ACCEPT)
+                    .eTag(etag).build();
+        }
+
+        String filters = filterTag(capacity, buildingName, startsAt, endsAt, equipment);
+        if (fields != null) {
+            return withEtag(searchViews(capacity, buildingName, startsAt, endsAt, equipment,
+                    fields, filters), etag);
+        }
+        if (sort == null && (limit != null || after != null)) {
+            return withEtag(searchPage(capacity, buildingName, startsAt, endsAt, equipment,
+                    limit, after, filters), etag);
+        }
+        if (sort != null) {
+            return withEtag(searchBestFit(capacity, buildingName, startsAt, endsAt, equipment,
+                    limit, preferredBuilding, preferredEquipment, filters), etag);
+        }
+        List<Room> listRooms = findRooms(capacity, buildingName, startsAt, endsAt, equipment,
+                filters);
+
+        // When the request contains start and end times, the final part of this
+        // mapping checks with the Booking service whether any of the selected rooms
+        // have already been booked during the given time period.
+        AtomicBoolean availabilityUnknown = new AtomicBoolean();
+        if (startsAt != null && endsAt != null) {
+            listRooms = checkAvailability(listRooms, startsAt, endsAt, filters,
+                    availabilityUnknown);
+        }
+
+        recordResults(listRooms, filters);
+        return withEtag(wrapRooms(listRooms, availabilityUnknown.get()), etag);
+    }
+
+    /**
+     * Asynchronous variant of /search/all-criteria. The request thread is released
+     * while the Booking service is being asked for the availability of the rooms.
+     * If the Booking service does not answer within the timeout, the search is
+     * handled according to booking.degraded-mode.
+     *
      * @param capacity     the desired capacity of the room
      * @param buildingName the name of the desired building
      * @param startsAt     start time of the desired time slot
      * @param endsAt       end time of the desired time slot
      * @param equipment    desired equipment available in the room
-     * @return a list containing the room ids that meet the given criteria
+     * @return a future completing with the rooms that meet the given criteria
      */
-    @GetMapping("/search/all-criteria")
-    Map<String, Iterable<Room>> getRoomBySearchCriteria(
+    @GetMapping("/search/all-criteria/async")
+    CompletableFuture<Map<String, Object>> getRoomBySearchCriteriaAsync(
             @RequestParam(name = "capacity", required = false)
                     Integer capacity,
             @RequestParam(name = "buildingName", required = false)
@@ -62,6 +293,413 @@ public class RoomSearchController {
             @RequestParam(name = "equipment", required = false)
                     List<String> equipment
     ) {
+        String filters = filterTag(capacity, buildingName, startsAt, endsAt, equipment);
+        List<Room> listRooms = findRooms(capacity, buildingName, startsAt, endsAt, equipment,
+                filters);
+
+        if (startsAt == null || endsAt == null) {
+            recordResults(listRooms, filters);
+            return CompletableFuture.completedFuture(wrapRooms(listRooms));
+        }
+        return checkBookedRoomsAsync(listRooms, startsAt, endsAt, filters)
+                .thenApply(availableRooms -> {
+                    recordResults(availableRooms, filters);
+                    return wrapRooms(availableRooms, false);
+                })
+                .exceptionally(e -> {
+                    List<Room> unfilteredRooms = degrade(listRooms, e);
+                    recordResults(unfilteredRooms, filters);
+                    return wrapRooms(unfilteredRooms, true);
+                });
+    }
+
+    /**
+     * Streaming variant of /search/all-criteria. The rooms that meet the criteria
+     * are written as newline delimited JSON, one room per line. The rooms are read
+     * through a database cursor and their availability is checked one chunk at a
+     * time. Every chunk is written as soon as it has been checked, so neither the
+     * rooms nor the response are ever held in memory as a whole.
+     *
+     * <p>If the circuit breaker of the Booking service is open, the search is
+     * handled according to booking.degraded-mode before anything is written, so
+     * the fail mode still answers with 503 Service Unavailable. Once the stream has
+     * started, a room of which the availability could not be checked is written
+     * with "availabilityUnknown": true, and a search that fails is ended with an
+     * "error" line, so a client can tell a failed stream from a complete one.
+     *
+     * <p>Without the index, the cursor holds a database connection and its read-only
+     * transaction open while the Booking service is asked and while the client reads
+     * the chunks. A stream is therefore ended with an "error" line once it has run
+     * for search.stream.timeout-ms.
+     *
+     * @param capacity     the desired capacity of the room
+     * @param buildingName the name of the desired building
+     * @param startsAt     start time of the desired time slot
+     * @param endsAt       end time of the desired time slot
+     * @param equipment    desired equipment available in the room
+     * @return the rooms that meet the given criteria as a stream of JSON lines
+     */
+    @GetMapping("/search/all-criteria/stream")
+    ResponseEntity<StreamingResponseBody> streamRoomBySearchCriteria(
+            @RequestParam(name = "capacity", required = false)
+                    Integer capacity,
+            @RequestParam(name = "buildingName", required = false)
+                    String buildingName,
+            @RequestParam(name = "startsAt", required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+                    LocalDateTime startsAt,
+            @RequestParam(name = "endsAt", required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+                    LocalDateTime endsAt,
+            @RequestParam(name = "equipment", required = false)
+                    List<String> equipment
+    ) {
+        String filters = filterTag(capacity, buildingName, startsAt, endsAt, equipment);
+        LocalTime start = startsAt == null ? null : LocalTime.from(startsAt);
+        LocalTime end = endsAt == null ? null : LocalTime.from(endsAt);
+        boolean checked = startsAt != null && endsAt != null;
+
+        // Once the first line is written the status can no longer change,
+        // so an open breaker is handled before the stream starts
+        boolean unverified = checked && !useCalendar(startsAt, endsAt)
+                && circuitBreaker.isRejecting();
+        if (unverified) {
+            degrade(Collections.emptyList(), new BookingServiceUnavailableException(
+                    BREAKER_REJECTED));
+        }
+
+        StreamingResponseBody body = outputStream -> {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(streamTimeout);
+            AtomicInteger results = new AtomicInteger();
+            try {
+                int candidates = roomSearchIndex.scrollByAllCriteria(capacity, buildingName,
+                        start, end, equipment, chunkSize, chunk -> {
+                            if (System.nanoTime() > deadline) {
+                                throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                                        "The search took longer than " + streamTimeout + " ms");
+                            }
+                            List<Room> rooms = chunk;
+                            AtomicBoolean availabilityUnknown = new AtomicBoolean(unverified);
+                            if (checked && !unverified) {
+                                rooms = checkAvailability(chunk, startsAt, endsAt,
+                                        filters, availabilityUnknown);
+                            }
+                            for (Room room : rooms) {
+                                writeLine(outputStream, availabilityUnknown.get()
+                                        ? objectMapper.<ObjectNode>valueToTree(room)
+                                                .put(AVAILABILITY_UNKNOWN, true)
+                                        : room);
+                            }
+                            flush(outputStream);
+                            results.addAndGet(rooms.size());
+                        });
+                meterRegistry.summary("room.search.candidates", FILTERS, filters)
+                        .record(candidates);
+            } catch (ResponseStatusException e) {
+                // The status has already been sent, so the failure is written as the
+                // last line instead of ending the stream as if it were complete
+                writeLine(outputStream, Collections.singletonMap("error", e.getReason()));
+                flush(outputStream);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            meterRegistry.summary("room.search.results", FILTERS, filters)
+                    .record(results.get());
+        };
+        return ResponseEntity.ok().contentType(NDJSON).body(body);
+    }
+
+    private void writeLine(OutputStream outputStream, Object value) {
+        try {
+            outputStream.write(objectMapper.writeValueAsBytes(value));
+            outputStream.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void flush(OutputStream outputStream) {
+        try {
+            outputStream.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The end point /search/bulk answers a list of searches in one request.
+     * Every distinct combination of criteria and time of day among the queries is
+     * searched once, and the Booking service is asked once for every
+     * distinct time slot, for all rooms any of the queries needs in that slot.
+     * The time slots are checked in parallel.
+     *
+     * @param queries the searches, each with the criteria of /search/all-criteria
+     * @return the rooms found for every query, in the order of the queries
+     */
+    @PostMapping("/search/bulk")
+    Map<String, Object> getRoomsBySearchQueries(@RequestBody List<SearchQuery> queries) {
+        if (queries.size() > maxBulkQueries) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                    "At most " + maxBulkQueries + " queries are allowed");
+        }
+
+        // Run every distinct combination of criteria and opening hours once,
+        // with the time of day filtered by the query itself. As in
+        // /search/all-criteria, a query with only a start or an end time is
+        // filtered on that time alone
+        Map<List<Object>, List<Room>> criteriaResults = new HashMap<>();
+        List<List<Room>> candidates = new ArrayList<>();
+        for (SearchQuery query : queries) {
+            LocalDateTime startsAt = query.getStartsAt();
+            LocalDateTime endsAt = query.getEndsAt();
+            List<Room> rooms = criteriaResults.computeIfAbsent(
+                    Arrays.asList(query.getCapacity(), query.getBuildingName(),
+                            query.getEquipment(),
+                            startsAt == null ? null : LocalTime.from(startsAt),
+                            endsAt == null ? null : LocalTime.from(endsAt)),
+                    criteria -> findRooms(query.getCapacity(), query.getBuildingName(),
+                            startsAt, endsAt, query.getEquipment(),
+                            filterTag(query.getCapacity(), query.getBuildingName(),
+                                    startsAt, endsAt, query.getEquipment())));
+            candidates.add(rooms);
+        }
+
+        // Collect the rooms to check for every distinct time slot
+        Map<List<LocalDateTime>, Map<Integer, Room>> roomsPerSlot = new LinkedHashMap<>();
+        for (int i = 0; i < queries.size(); i++) {
+            SearchQuery query = queries.get(i);
+            if (query.hasTimeSlot()) {
+                Map<Integer, Room> slotRooms = roomsPerSlot.computeIfAbsent(
+                        Arrays.asList(query.getStartsAt(), query.getEndsAt()),
+                        slot -> new LinkedHashMap<>());
+                for (Room room : candidates.get(i)) {
+                    slotRooms.put(room.getId(), room);
+                }
+            }
+        }
+
+        Map<List<LocalDateTime>, Future<List<Room>>> checks = new HashMap<>();
+        Map<List<LocalDateTime>, AtomicBoolean> unknownPerSlot = new HashMap<>();
+        for (Map.Entry<List<LocalDateTime>, Map<Integer, Room>> slot : roomsPerSlot.entrySet()) {
+            List<Room> slotRooms = new ArrayList<>(slot.getValue().values());
+            AtomicBoolean availabilityUnknown = new AtomicBoolean();
+            unknownPerSlot.put(slot.getKey(), availabilityUnknown);
+            checks.put(slot.getKey(), bulkSearchExecutor.submit(() -> checkAvailability(
+                    slotRooms, slot.getKey().get(0), slot.getKey().get(1), BULK_FILTERS,
+                    availabilityUnknown)));
+        }
+        Map<List<LocalDateTime>, AvailableRooms> availablePerSlot = new HashMap<>();
+        try {
+            for (Map.Entry<List<LocalDateTime>, Future<List<Room>>> check : checks.entrySet()) {
+                availablePerSlot.put(check.getKey(), roomIds(awaitResponse(check.getValue())));
+            }
+        } finally {
+            // When the check of a slot fails, the checks of the other slots are not needed
+            for (Future<List<Room>> check : checks.values()) {
+                check.cancel(true);
+            }
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (int i = 0; i < queries.size(); i++) {
+            SearchQuery query = queries.get(i);
+            List<Room> rooms = candidates.get(i);
+            boolean availabilityUnknown = false;
+            if (query.hasTimeSlot()) {
+                List<LocalDateTime> slot = Arrays.asList(query.getStartsAt(), query.getEndsAt());
+                rooms = selectAvailableRooms(rooms, availablePerSlot.get(slot));
+                availabilityUnknown = unknownPerSlot.get(slot).get();
+            }
+            results.add(wrapRooms(rooms, availabilityUnknown));
+        }
+
+        Map<String, Object> json = new HashMap<>();
+        json.put("results", results);
+        return json;
+    }
+
+    /**
+     * The end point /search/availability/invalidate is called by the Booking service
+     * when a booking is made, so the cached availability of the room is dropped.
+     * Without a room and period, all cached availability is dropped.
+     *
+     * @param roomId   the ID of the booked room
+     * @param startsAt start of the booking
+     * @param endsAt   end of the booking
+     * @return 200 OK once the cached availability has been dropped
+     */
+    @PostMapping("/search/availability/invalidate")
+    ResponseEntity<Void> invalidateAvailability(
+            @RequestParam(name = "roomId", required = false)
+                    Integer roomId,
+            @RequestParam(name = "startsAt", required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+                    LocalDateTime startsAt,
+            @RequestParam(name = "endsAt", required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+                    LocalDateTime endsAt
+    ) {
+        if (roomId == null || startsAt == null || endsAt == null) {
+            availabilityCache.invalidateAll();
+        } else {
+            availabilityCache.invalidate(roomId, startsAt, endsAt);
+        }
+        return ResponseEntity.ok().build();
+    }
+
+    /**
+     * The end point /search/bookings/events is called by the Booking service
+     * whenever a booking is created or cancelled, to keep the local calendar
+     * of the rooms in sync.
+     *
+     * @param roomId   the ID of the booked room
+     * @param startsAt start of the booking
+     * @param endsAt   end of the booking
+     * @param type     "created" or "cancelled"
+     * @return 200 OK once the calendar has been updated, 400 if the event is invalid
+     */
+    @PostMapping("/search/bookings/events")
+    ResponseEntity<Void> handleBookingEvent(
+            @RequestParam(name = "roomId")
+                    int roomId,
+            @RequestParam(name = "startsAt")
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+                    LocalDateTime startsAt,
+            @RequestParam(name = "endsAt")
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+                    LocalDateTime endsAt,
+            @RequestParam(name = "type")
+                    String type
+    ) {
+        if (!roomCalendar.accepts(startsAt, endsAt)) {
+            return ResponseEntity.badRequest().build();
+        }
+        if ("created".equals(type)) {
+            roomCalendar.book(roomId, startsAt, endsAt);
+        } else if ("cancelled".equals(type)) {
+            roomCalendar.release(roomId, startsAt, endsAt);
+        } else {
+            return ResponseEntity.badRequest().build();
+        }
+        availabilityCache.invalidate(roomId, startsAt, endsAt);
+        return ResponseEntity.ok().build();
+    }
+
+    /**
+     * The end point /search/bookings/sync is called by the Booking service with
+     * all current bookings, to replace the local calendar of the rooms. Until the
+     * first snapshot has arrived, the availability is asked from the Booking service.
+     *
+     * @param bookings all current bookings
+     * @return 200 OK once the calendar has been replaced, 400 if a booking is invalid
+     */
+    @PostMapping("/search/bookings/sync")
+    ResponseEntity<Void> syncBookings(@RequestBody List<Booking> bookings) {
+        for (Booking booking : bookings) {
+            if (booking.getStartsAt() == null || booking.getEndsAt() == null
+                    || !roomCalendar.accepts(booking.getStartsAt(), booking.getEndsAt())) {
+                return ResponseEntity.badRequest().build();
+            }
+        }
+        roomCalendar.sync(bookings);
+        availabilityCache.invalidateAll();
+        return ResponseEntity.ok().build();
+    }
+
+    /**
+     * The end point /search/free returns the first rooms that meet the criteria
+     * and are free for the given number of minutes between from and to, according
+     * to the calendar kept in sync by the Booking service. The rooms are ordered by
+     * the earliest moment they become free. Until the calendar has been synced the
+     * answer would be incomplete, so the end point is unavailable.
+     *
+     * @param capacity     the desired capacity of the room
+     * @param buildingName the name of the desired building
+     * @param equipment    desired equipment available in the room
+     * @param from         the start of the period to search in
+     * @param to           the end of the period to search in
+     * @param minutes      the number of minutes the room must be free
+     * @param count        the maximum number of rooms to return
+     * @return the rooms, each with the moment from which it is free, or 503 Service
+     *         Unavailable if the calendar has not been synced yet
+     */
+    @GetMapping("/search/free")
+    Map<String, Object> getFreeRooms(
+            @RequestParam(name = "capacity", required = false)
+                    Integer capacity,
+            @RequestParam(name = "buildingName", required = false)
+                    String buildingName,
+            @RequestParam(name = "equipment", required = false)
+                    List<String> equipment,
+            @RequestParam(name = "from")
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+                    LocalDateTime from,
+            @RequestParam(name = "to")
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+                    LocalDateTime to,
+            @RequestParam(name = "minutes")
+                    int minutes,
+            @RequestParam(name = "count", defaultValue = "10")
+                    int count
+    ) {
+        if (minutes < 1 || count < 1 || count > maxPageSize || !roomCalendar.accepts(from, to)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "minutes must be positive, count between 1 and " + maxPageSize
+                            + " and from before to, within calendar.max-window-days");
+        }
+        if (!roomCalendar.isSynced()) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                    "The calendar has not been synced with the Booking service yet");
+        }
+
+        String filters = filterTag(capacity, buildingName, null, null, equipment);
+        List<Room> listRooms = findRooms(capacity, buildingName, null, null, equipment,
+                filters);
+
+        List<Map<String, Object>> freeRooms = new ArrayList<>();
+        for (Room room : listRooms) {
+            LocalDateTime freeFrom = roomCalendar.firstFreeStart(room.getId(), from, to, minutes);
+            if (freeFrom != null) {
+                Map<String, Object> freeRoom = new HashMap<>();
+                freeRoom.put("room", room);
+                freeRoom.put("startsAt", freeFrom);
+                freeRooms.add(freeRoom);
+            }
+        }
+        freeRooms.sort(Comparator.comparing(
+                freeRoom -> (LocalDateTime) freeRoom.get("startsAt")));
+
+        Map<String, Object> json = new HashMap<>();
+        json.put("rooms", freeRooms.subList(0, Math.min(count, freeRooms.size())));
+        return json;
+    }
+
+    /**
+     * The end point /search/availability/cache-statistics returns the hit, miss
+     * and eviction counters of the availability cache.
+     *
+     * @return a map from the name of each counter to its value
+     */
+    @GetMapping("/search/availability/cache-statistics")
+    Map<String, Long> getAvailabilityCacheStatistics() {
+        return availabilityCache.getStatistics();
+    }
+
+    /**
+     * Select the rooms that meet the given criteria, from the database
+     * or from the in-memory search index when it is enabled.
+     *
+     * @param capacity     the desired capacity of the room
+     * @param buildingName the name of the desired building
+     * @param startsAt     start time of the desired time slot
+     * @param endsAt       end time of the desired time slot
+     * @param equipment    desired equipment available in the room
+     * @param filters      the tag describing the given criteria
+     * @return the rooms that meet the given criteria
+     */
+    private List<Room> findRooms(Integer capacity, String buildingName,
+                                 LocalDateTime startsAt, LocalDateTime endsAt,
+                                 List<String> equipment, String filters) {
         // Convert Date-time to time.
         // Ignoring PMD below because null assignment on default is essential.
         // This is because start and end needs to be null if startsAt or endsAt is null.
@@ -83,72 +721,755 @@ public class RoomSearchController {
             equipmentListSize = 0;
         }
 
-        List<Room> listRooms = roomRepository.getAllByAllCriteria(capacity, buildingName,
-                start, end, equipment, equipmentListSize);
+        LocalTime filterStart = start;
+        LocalTime filterEnd = end;
+        List<Room> listRooms = meterRegistry.timer("room.search.database", FILTERS, filters)
+                .record(() -> roomSearchIndex.getAllByAllCriteria(capacity, buildingName,
+                        filterStart, filterEnd, equipment, equipmentListSize));
+        meterRegistry.summary("room.search.candidates", FILTERS, filters)
+                .record(listRooms.size());
+        return listRooms;
+    }
 
-        // When the request contains start and end times, the final part of this
-        // mapping checks with the Booking service whether any of the selected rooms
-        // have already been booked during the given time period.
+    /**
+     * Select only the given fields of the rooms that meet the given criteria.
+     * The fields are read by the query itself, so neither the rooms nor their
+     * buildings are loaded as entities.
+     *
+     * @param capacity     the desired capacity of the room
+     * @param buildingName the name of the desired building
+     * @param startsAt     start time of the desired time slot
+     * @param endsAt       end time of the desired time slot
+     * @param equipment    desired equipment available in the room
+     * @param fields       the fields of every room to return
+     * @param filters      the tag describing the given criteria
+     * @return the available rooms, each with the given fields and its ID
+     */
+    private Map<String, Object> searchViews(Integer capacity, String buildingName,
+                                            LocalDateTime startsAt, LocalDateTime endsAt,
+                                            List<String> equipment, List<String> fields,
+                                            String filters) {
+        LocalTime start = startsAt == null ? null : LocalTime.from(startsAt);
+        LocalTime end = endsAt == null ? null : LocalTime.from(endsAt);
+
+        List<RoomView> views = meterRegistry.timer("room.search.database", FILTERS, filters)
+                .record(() -> roomCriteriaQuery.getViewsByAllCriteria(capacity, buildingName,
+                        start, end, equipment, fields));
+        meterRegistry.summary("room.search.candidates", FILTERS, filters).record(views.size());
+
+        AtomicBoolean availabilityUnknown = new AtomicBoolean();
         if (startsAt != null && endsAt != null) {
-            listRooms = checkBookedRooms(listRooms, start, end);
+            views = checkAvailability(views, RoomView::getId, startsAt, endsAt, filters,
+                    availabilityUnknown);
+        }
+        recordResults(views, filters);
+        return wrapRooms(views, availabilityUnknown.get());
+    }
+
+    /**
+     * Select one page of rooms, ordered by ID, starting after the given cursor.
+     * The cursor and the size of the page are part of the query, so only the
+     * rooms on the page are read. When a time period is given, booked rooms are
+     * skipped and the next rooms are read until the page is full, so every page
+     * holds up to limit available rooms and no room is skipped or repeated across pages.
+     *
+     * @param capacity     the desired capacity of the room
+     * @param buildingName the name of the desired building
+     * @param startsAt     start time of the desired time slot
+     * @param endsAt       end time of the desired time slot
+     * @param equipment    desired equipment available in the room
+     * @param limit        the maximum number of rooms on the page
+     * @param after        only rooms with a larger ID are returned
+     * @param filters      the tag describing the search criteria
+     * @return the rooms on the page, and the cursor of the next page under "next"
+     */
+    private Map<String, Object> searchPage(Integer capacity, String buildingName,
+                                           LocalDateTime startsAt, LocalDateTime endsAt,
+                                           List<String> equipment, Integer limit,
+                                           Integer after, String filters) {
+        int pageSize = limit == null ? maxPageSize : limit;
+        LocalTime start = startsAt == null ? null : LocalTime.from(startsAt);
+        LocalTime end = endsAt == null ? null : LocalTime.from(endsAt);
+
+        List<Room> page = new ArrayList<>();
+        AtomicBoolean availabilityUnknown = new AtomicBoolean();
+        Integer cursor = after;
+        boolean more = true;
+        while (page.size() < pageSize && more) {
+            // One room more than needed is read to know whether there is a next page
+            int needed = pageSize - page.size();
+            Integer batchAfter = cursor;
+            List<Room> batch = meterRegistry.timer("room.search.database", FILTERS, filters)
+                    .record(() -> roomSearchIndex.getPageByAllCriteria(capacity, buildingName,
+                            start, end, equipment, batchAfter, needed + 1));
+            meterRegistry.summary("room.search.candidates", FILTERS, filters)
+                    .record(batch.size());
+            more = batch.size() > needed;
+            if (more) {
+                batch = batch.subList(0, needed);
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            cursor = batch.get(batch.size() - 1).getId();
+            if (startsAt != null && endsAt != null) {
+                page.addAll(checkAvailability(batch, startsAt, endsAt, filters,
+                        availabilityUnknown));
+            } else {
+                page.addAll(batch);
+            }
+        }
+
+        recordResults(page, filters);
+        Map<String, Object> json = wrapRooms(page, availabilityUnknown.get());
+        json.put("next", more ? cursor : null);
+        return json;
+    }
+
+    /**
+     * Select the best fitting rooms. The candidates are scrolled through in chunks
+     * and only the best limit rooms, plus search.best-fit.overflow rooms to replace
+     * booked ones, are kept in a bounded heap, so the memory of a search does not
+     * grow with the number of candidates. The best limit rooms are checked with
+     * the Booking service first, and booked rooms are replaced by the next best
+     * kept rooms. Only when those run out as well are the candidates scrolled
+     * through again, keeping the best rooms after the last one checked.
+     *
+     * @param capacity           the desired capacity of the room
+     * @param buildingName       the name of the desired building
+     * @param startsAt           start time of the desired time slot
+     * @param endsAt             end time of the desired time slot
+     * @param equipment          desired equipment available in the room
+     * @param limit              the maximum number of rooms to return
+     * @param preferredBuilding  the name of the preferred building, or null
+     * @param preferredEquipment the preferred equipment, or null
+     * @param filters            the tag describing the search criteria
+     * @return the best fitting available rooms, the best first
+     */
+    private Map<String, Object> searchBestFit(Integer capacity, String buildingName,
+                                              LocalDateTime startsAt, LocalDateTime endsAt,
+                                              List<String> equipment, Integer limit,
+                                              String preferredBuilding,
+                                              List<String> preferredEquipment,
+                                              String filters) {
+        int count = limit == null ? maxPageSize : limit;
+        LocalTime start = startsAt == null ? null : LocalTime.from(startsAt);
+        LocalTime end = endsAt == null ? null : LocalTime.from(endsAt);
+
+        List<Room> bestRooms = new ArrayList<>();
+        AtomicBoolean availabilityUnknown = new AtomicBoolean();
+        BestFitRanking.Candidate cutoff = null;
+        boolean more = true;
+        while (bestRooms.size() < count && more) {
+            BestFitRanking.TopCandidates top = new BestFitRanking.TopCandidates(
+                    count + Math.max(bestFitOverflow, 0), cutoff);
+            int candidates = meterRegistry.timer("room.search.database", FILTERS, filters)
+                    .record(() -> roomSearchIndex.scrollByAllCriteria(capacity, buildingName,
+                            start, end, equipment, chunkSize, chunk -> {
+                                for (BestFitRanking.Candidate candidate : bestFitRanking.score(
+                                        capacity, preferredBuilding, preferredEquipment,
+                                        chunk)) {
+                                    top.offer(candidate);
+                                }
+                            }));
+            if (cutoff == null) {
+                meterRegistry.summary("room.search.candidates", FILTERS, filters)
+                        .record(candidates);
+            }
+            more = top.hasSkipped();
+
+            List<BestFitRanking.Candidate> ranked = top.sorted();
+            int next = 0;
+            while (bestRooms.size() < count && next < ranked.size()) {
+                int batchSize = Math.min(count - bestRooms.size(), ranked.size() - next);
+                List<Room> batch = new ArrayList<>(batchSize);
+                for (BestFitRanking.Candidate candidate : ranked.subList(next,
+                        next + batchSize)) {
+                    batch.add(candidate.getRoom());
+                }
+                next += batchSize;
+                if (startsAt != null && endsAt != null) {
+                    bestRooms.addAll(checkAvailability(batch, startsAt, endsAt, filters,
+                            availabilityUnknown));
+                } else {
+                    bestRooms.addAll(batch);
+                }
+            }
+            if (!ranked.isEmpty()) {
+                cutoff = ranked.get(ranked.size() - 1);
+            }
         }
 
-        Map<String, Iterable<Room>> json = new HashMap<>();
+        recordResults(bestRooms, filters);
+        return wrapRooms(bestRooms, availabilityUnknown.get());
+    }
+
+    /**
+     * Describe which search criteria are present, for example "capacity,time".
+     *
+     * @param capacity     the desired capacity of the room
+     * @param buildingName the name of the desired building
+     * @param startsAt     start time of the desired time slot
+     * @param endsAt       end time of the desired time slot
+     * @param equipment    desired equipment available in the room
+     * @return the names of the present criteria, or "none"
+     */
+    private String filterTag(Integer capacity, String buildingName,
+                             LocalDateTime startsAt, LocalDateTime endsAt,
+                             List<String> equipment) {
+        StringJoiner filters = new StringJoiner(",");
+        filters.setEmptyValue("none");
+        if (capacity != null) {
+            filters.add("capacity");
+        }
+        if (buildingName != null) {
+            filters.add("building");
+        }
+        if (startsAt != null && endsAt != null) {
+            filters.add("time");
+        }
+        if (equipment != null) {
+            filters.add("equipment");
+        }
+        return filters.toString();
+    }
+
+    private void recordResults(List<?> listRooms, String filters) {
+        meterRegistry.summary("room.search.results", FILTERS, filters).record(listRooms.size());
+    }
+
+    private Map<String, Object> wrapRooms(List<?> listRooms) {
+        return wrapRooms(listRooms, false);
+    }
+
+    private Map<String, Object> wrapRooms(List<?> listRooms, boolean availabilityUnknown) {
+        Map<String, Object> json = new HashMap<>();
         json.put("rooms", listRooms);
+        if (availabilityUnknown) {
+            json.put(AVAILABILITY_UNKNOWN, true);
+        }
 
         return json;
     }
 
+    /**
+     * Reject a search of which the parameters cannot be combined. This is done
+     * before the ETag is compared, so an invalid search is never answered
+     * with 304 Not Modified.
+     *
+     * @param limit  the maximum number of rooms to return
+     * @param after  the cursor of a paginated search
+     * @param sort   the order of the rooms to return
+     * @param fields the fields of every room to return
+     */
+    private void validateSearch(Integer limit, Integer after, String sort, List<String> fields) {
+        if (sort != null && (!BEST_FIT.equals(sort) || after != null)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "sort must be " + BEST_FIT + " and cannot be combined with after");
+        }
+        if (fields != null && (sort != null || limit != null || after != null
+                || !RoomView.FIELDS.containsAll(fields))) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "fields must be among " + RoomView.FIELDS
+                            + " and cannot be combined with sort, limit or after");
+        }
+        if (limit != null && (limit < 1 || limit > maxPageSize)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "limit must be between 1 and " + maxPageSize);
+        }
+    }
+
+    /**
+     * Build the ETag of a search. Without a time period the result only depends
+     * on the rooms. With a time period it depends on the bookings as well, of
+     * which a change is only known when they are read from the synced calendar.
+     * The Booking service does not report its changes, so a search it answers
+     * gets no ETag and is never answered with 304 Not Modified.
+     *
+     * @param startsAt start time of the desired time slot
+     * @param endsAt   end time of the desired time slot
+     * @param criteria the hash of all parameters of the search and the Accept header
+     * @return the ETag of the current result, or null if it cannot be validated
+     */
+    private String searchEtag(LocalDateTime startsAt, LocalDateTime endsAt, int criteria) {
+        String bookings = "";
+        if (startsAt != null && endsAt != null) {
+            if (!useCalendar(startsAt, endsAt)) {
+                return null;
+            }
+            bookings = "-" + roomCalendar.getVersion();
+        }
+        return "\"" + roomSearchIndex.getVersion() + bookings + "-"
+                + Integer.toHexString(criteria) + "\"";
+    }
+
+    /**
+     * Check whether the If-None-Match header of a request names the given ETag.
+     *
+     * @param ifNoneMatch the If-None-Match header, or null
+     * @param etag        the ETag of the current result
+     * @return true if the client already has the current result
+     */
+    private static boolean matchesEtag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || "*".equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ResponseEntity<Map<String, Object>> withEtag(Map<String, Object> json,
+                                                         String etag) {
+        // A result of which the availability is unknown must be asked for again
+        if (etag == null || json.containsKey(AVAILABILITY_UNKNOWN)) {
+            return ResponseEntity.ok().varyBy(HttpHeaders.ACCEPT).body(json);
+        }
+        return ResponseEntity.ok().varyBy(HttpHeaders.ACCEPT).eTag(etag).body(json);
+    }
+
+    /**
+     * Check the availability of the rooms with the Booking service. If the
+     * Booking service is unavailable, the search is handled according to
+     * booking.degraded-mode.
+     *
+     * @param listRooms           the list of rooms that must be checked
+     * @param startsAt            the start of the requested time period
+     * @param endsAt              the end of the requested time period
+     * @param filters             the tag describing the search criteria
+     * @param availabilityUnknown set to true if the availability could not be checked
+     * @return the available rooms, or all rooms if their availability is unknown
+     */
+    private List<Room> checkAvailability(List<Room> listRooms, LocalDateTime startsAt,
+                                         LocalDateTime endsAt, String filters,
+                                         AtomicBoolean availabilityUnknown) {
+        return checkAvailability(listRooms, Room::getId, startsAt, endsAt, filters,
+                availabilityUnknown);
+    }
+
+    private <T> List<T> checkAvailability(List<T> listRooms, ToIntFunction<T> roomId,
+                                          LocalDateTime startsAt, LocalDateTime endsAt,
+                                          String filters,
+                                          AtomicBoolean availabilityUnknown) {
+        try {
+            return selectAvailableRooms(listRooms, roomId,
+                    checkBookedRooms(roomIdList(listRooms, roomId), startsAt, endsAt,
+                            filters));
+        } catch (BookingServiceUnavailableException e) {
+            List<T> unfilteredRooms = degrade(listRooms, e);
+            availabilityUnknown.set(true);
+            return unfilteredRooms;
+        }
+    }
+
+    /**
+     * Handle a search of which the availability could not be checked. In the
+     * "unfiltered" mode all rooms are returned, in the "fail" mode the search
+     * fails fast with 503 Service Unavailable.
+     *
+     * @param listRooms the rooms of which the availability is unknown
+     * @param cause     the reason the availability could not be checked
+     * @return the unfiltered rooms
+     */
+    private <T> List<T> degrade(List<T> listRooms, Throwable cause) {
+        if (UNFILTERED.equals(degradedMode)) {
+            return listRooms;
+        }
+        throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+                "The availability of the rooms could not be checked", cause);
+    }
+
     /**
      * Make a call to the Booking service to check whether any of the rooms
      * given already have bookings overlapping with the given time period.
+     * Rooms of which the availability is cached are not sent to the Booking service.
+     *
+     * @param roomIds  the IDs of the rooms that must be checked
+     * @param startsAt the start of the requested time period
+     * @param endsAt   the end of the requested time period
+     * @param filters  the tag describing the search criteria
+     * @return the IDs of the rooms without any bookings during [startsAt, endsAt]
+     */
+    private AvailableRooms checkBookedRooms(List<Integer> roomIds,
+                                            LocalDateTime startsAt,
+                                            LocalDateTime endsAt,
+                                            String filters) {
+        if (useCalendar(startsAt, endsAt)) {
+            return selectFreeRooms(roomIds, startsAt, endsAt);
+        }
+
+        // The versions of the rooms are read first, so an invalidation during the
+        // calls is not overwritten
+        AvailableRooms availableIds = new AvailableRooms();
+        Map<Integer, Long> uncachedIds = lookUpCachedAvailability(roomIds, startsAt, endsAt,
+                availableIds);
+        if (uncachedIds.isEmpty()) {
+            return availableIds;
+        }
+
+        // Split the rooms into chunks, so the URL of a single request stays short,
+        // and send the chunks to the Booking service in parallel
+        List<List<Integer>> chunks = partition(new ArrayList<>(uncachedIds.keySet()));
+        AvailableRooms idList = new AvailableRooms();
+        if (chunks.size() == 1) {
+            idList.addAll(requestAvailableIds(chunks.get(0), startsAt, endsAt, filters));
+        } else {
+            // Every lane sends its chunks one after the other, so at most
+            // `parallelism` requests of this search are in flight at the same time
+            AvailableRooms[] chunkIds = new AvailableRooms[chunks.size()];
+            int lanes = Math.min(parallelism, chunks.size());
+            List<Future<?>> laneFutures = new ArrayList<>();
+            for (int lane = 0; lane < lanes; lane++) {
+                int firstChunk = lane;
+                laneFutures.add(bookingExecutor.submit(() -> {
+                    for (int i = firstChunk; i < chunks.size(); i += lanes) {
+                        chunkIds[i] = requestAvailableIds(chunks.get(i), startsAt, endsAt,
+                                filters);
+                    }
+                }));
+            }
+            awaitLanes(laneFutures);
+            for (AvailableRooms ids : chunkIds) {
+                idList.addAll(ids);
+            }
+        }
+
+        cacheAvailability(uncachedIds, idList, startsAt, endsAt);
+        availableIds.addAll(idList);
+        return availableIds;
+    }
+
+    /**
+     * Make a non-blocking call to the Booking service to check whether any of
+     * the rooms given already have bookings overlapping with the requested time period.
+     * Failures and timeouts of the call complete the future exceptionally.
      *
      * @param listRooms the list of rooms that must be checked
      * @param startsAt the start of the requested time period
      * @param endsAt the end of the requested time period
-     * @return a list of rooms without any bookings during [startsAt, endsAt]
+     * @param filters the tag describing the search criteria
+     * @return a future completing with the rooms that are not booked
      */
-    private List<Room> checkBookedRooms(List<Room> listRooms,
-                                        LocalTime startsAt,
-                                        LocalTime endsAt) {
-        List<Room> availableRooms = new ArrayList<>();
+    private CompletableFuture<List<Room>> checkBookedRoomsAsync(List<Room> listRooms,
+                                                                LocalDateTime startsAt,
+                                                                LocalDateTime endsAt,
+                                                                String filters) {
+        List<Integer> roomIds = roomIdList(listRooms, Room::getId);
+        if (useCalendar(startsAt, endsAt)) {
+            return CompletableFuture.completedFuture(selectAvailableRooms(listRooms,
+                    selectFreeRooms(roomIds, startsAt, endsAt)));
+        }
+
+        AvailableRooms availableIds = new AvailableRooms();
+        Map<Integer, Long> uncachedIds = lookUpCachedAvailability(roomIds, startsAt, endsAt,
+                availableIds);
+        if (uncachedIds.isEmpty()) {
+            return CompletableFuture.completedFuture(
+                    selectAvailableRooms(listRooms, availableIds));
+        }
+
+        // Every lane sends its chunks one after the other, so at most
+        // `parallelism` requests of this search are in flight at the same time
+        List<List<Integer>> chunks = partition(new ArrayList<>(uncachedIds.keySet()));
+        AtomicReferenceArray<AvailableRooms> chunkIds = new AtomicReferenceArray<>(chunks.size());
+        int lanes = Math.min(parallelism, chunks.size());
+        CompletableFuture<?>[] laneFutures = new CompletableFuture<?>[lanes];
+        for (int lane = 0; lane < lanes; lane++) {
+            CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
+            for (int i = lane; i < chunks.size(); i += lanes) {
+                int index = i;
+                future = future.thenCompose(ignored -> requestAvailableIdsAsync(
+                                chunks.get(index), startsAt, endsAt, filters))
+                        .thenAccept(ids -> chunkIds.set(index, ids));
+            }
+            laneFutures[lane] = future;
+        }
+
+        return CompletableFuture.allOf(laneFutures)
+                .thenApply(ignored -> {
+                    // Merge the responses in the order of the chunks
+                    AvailableRooms idList = new AvailableRooms();
+                    for (int i = 0; i < chunkIds.length(); i++) {
+                        idList.addAll(chunkIds.get(i));
+                    }
+                    cacheAvailability(uncachedIds, idList, startsAt, endsAt);
+                    availableIds.addAll(idList);
+                    return selectAvailableRooms(listRooms, availableIds);
+                });
+    }
+
+    private AvailableRooms requestAvailableIds(List<Integer> chunk, LocalDateTime startsAt,
+                                               LocalDateTime endsAt, String filters) {
+        BookingCircuitBreaker.Permit permit = circuitBreaker.tryAcquire();
+        if (permit == null) {
+            throw new BookingServiceUnavailableException(BREAKER_REJECTED);
+        }
+        Timer.Sample sample = Timer.start(meterRegistry);
+        AtomicReference<String> status = new AtomicReference<>();
+        try {
+            // Make call to Booking service endpoint for checking availability,
+            // decoding the IDs while the response is being read
+            AvailableRooms ids = restTemplate.execute(
+                    URI.create(availabilityUrl(chunk, startsAt, endsAt)), HttpMethod.GET,
+                    null, response -> {
+                        status.set(String.valueOf(response.getRawStatusCode()));
+                        return AvailableRooms.read(response.getBody());
+                    });
+            circuitBreaker.recordSuccess(permit);
+            recordParsedIds(ids, filters);
+            return ids;
+        } catch (RestClientResponseException e) {
+            status.set(String.valueOf(e.getRawStatusCode()));
+            circuitBreaker.recordFailure(permit);
+            throw new BookingServiceUnavailableException(BOOKING_FAILED, e);
+        } catch (RuntimeException e) {
+            // A read timeout after the status was received still counts as a timeout
+            if (status.get() == null || isTimeout(e)) {
+                status.set(failureStatus(e));
+            }
+            circuitBreaker.recordFailure(permit);
+            throw new BookingServiceUnavailableException(BOOKING_FAILED, e);
+        } finally {
+            sample.stop(meterRegistry.timer("room.search.booking.requests",
+                    "status", status.get(), FILTERS, filters));
+        }
+    }
 
-        // Add the so far selected room IDs to the request to the Booking service
-        String roomIds = "";
+    private CompletableFuture<AvailableRooms> requestAvailableIdsAsync(List<Integer> chunk,
+                                                                       LocalDateTime startsAt,
+                                                                       LocalDateTime endsAt,
+                                                                       String filters) {
+        // The request is built first, so a failure to build it does not take a permit
+        HttpRequest request = HttpRequest.newBuilder(
+                        URI.create(availabilityUrl(chunk, startsAt, endsAt)))
+                .timeout(Duration.ofMillis(readTimeout))
+                .GET()
+                .build();
+        BookingCircuitBreaker.Permit permit = circuitBreaker.tryAcquire();
+        if (permit == null) {
+            return CompletableFuture.failedFuture(
+                    new BookingServiceUnavailableException(BREAKER_REJECTED));
+        }
+
+        Timer.Sample sample = Timer.start(meterRegistry);
+        CompletableFuture<HttpResponse<AvailableRooms>> call;
+        try {
+            call = httpClient.sendAsync(request, AVAILABLE_ROOMS_HANDLER);
+        } catch (RuntimeException e) {
+            circuitBreaker.recordFailure(permit);
+            return CompletableFuture.failedFuture(e);
+        }
+        return call
+                .whenComplete((response, e) -> {
+                    String status = response != null
+                            ? String.valueOf(response.statusCode()) : failureStatus(e);
+                    sample.stop(meterRegistry.timer("room.search.booking.requests",
+                            "status", status, FILTERS, filters));
+                })
+                .thenApply(response -> {
+                    if (response.statusCode() != HttpStatus.OK.value()) {
+                        throw new IllegalStateException("Booking service answered with status "
+                                + response.statusCode());
+                    }
+                    recordParsedIds(response.body(), filters);
+                    return response.body();
+                })
+                .whenComplete((ids, e) -> {
+                    if (e == null) {
+                        circuitBreaker.recordSuccess(permit);
+                    } else {
+                        circuitBreaker.recordFailure(permit);
+                    }
+                });
+    }
+
+    private void recordParsedIds(AvailableRooms ids, String filters) {
+        meterRegistry.summary("room.search.booking.ids", FILTERS, filters).record(ids.size());
+    }
+
+    /**
+     * Describe a failed call to the Booking service for the status tag of
+     * room.search.booking.requests, the same way for the blocking and the
+     * non-blocking client.
+     *
+     * @param failure the reason the call failed
+     * @return "timeout" if the call timed out, "error" otherwise
+     */
+    private static String failureStatus(Throwable failure) {
+        return isTimeout(failure) ? "timeout" : "error";
+    }
+
+    private static boolean isTimeout(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException || cause instanceof HttpTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private <T> T awaitResponse(Future<T> response) {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the Booking service", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Booking service call failed", e.getCause());
+        }
+    }
+
+    /**
+     * Wait for the lanes of a search, but no longer than booking.search-timeout-ms
+     * in total. The lanes that are still running after that are cancelled.
+     *
+     * @param laneFutures the lanes sending the chunks of the search
+     */
+    private void awaitLanes(List<Future<?>> laneFutures) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(searchTimeout);
+        try {
+            for (Future<?> lane : laneFutures) {
+                lane.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        } catch (TimeoutException e) {
+            throw new BookingServiceUnavailableException(
+                    "The Booking service did not answer in time", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the Booking service", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Booking service call failed", e.getCause());
+        } finally {
+            for (Future<?> lane : laneFutures) {
+                lane.cancel(true);
+            }
+        }
+    }
+
+    private <T> List<List<T>> partition(List<T> listRooms) {
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < listRooms.size(); i += chunkSize) {
+            chunks.add(listRooms.subList(i, Math.min(i + chunkSize, listRooms.size())));
+        }
+        return chunks;
+    }
+
+    /**
+     * Collect the IDs of the rooms that are cached as available.
+     *
+     * @param roomIds      the IDs of the rooms that must be checked
+     * @param startsAt     the start of the requested time period
+     * @param endsAt       the end of the requested time period
+     * @param availableIds the IDs of the available rooms are added to this
+     * @return the IDs of the rooms of which the availability is not cached,
+     *         in the given order, mapped to the version of each room
+     */
+    private Map<Integer, Long> lookUpCachedAvailability(List<Integer> roomIds,
+                                                        LocalDateTime startsAt,
+                                                        LocalDateTime endsAt,
+                                                        AvailableRooms availableIds) {
+        Map<Integer, Long> uncachedIds = new LinkedHashMap<>();
+        for (int roomId : roomIds) {
+            // Read the version before the cache, so an answer is never stored
+            // under a version that is newer than the booking state it reflects
+            long version = availabilityCache.getVersion(roomId);
+            Boolean available = availabilityCache.get(roomId, startsAt, endsAt);
+            if (available == null) {
+                uncachedIds.put(roomId, version);
+            } else if (available) {
+                availableIds.add(roomId);
+            }
+        }
+        return uncachedIds;
+    }
+
+    private void cacheAvailability(Map<Integer, Long> checkedIds, AvailableRooms idList,
+                                   LocalDateTime startsAt, LocalDateTime endsAt) {
+        for (Map.Entry<Integer, Long> checked : checkedIds.entrySet()) {
+            int roomId = checked.getKey();
+            availabilityCache.put(roomId, startsAt, endsAt, idList.contains(roomId),
+                    checked.getValue());
+        }
+    }
+
+    private String availabilityUrl(List<Integer> chunk, LocalDateTime startsAt,
+                                   LocalDateTime endsAt) {
+        // Add the so far selected room IDs and the requested time period
+        // to the request to the Booking service
+        StringJoiner roomIds = new StringJoiner(",",
+                bookingUrl + "/available/multiple/",
+                "?startsAt=" + startsAt + "&endsAt=" + endsAt);
+        for (int roomId : chunk) {
+            roomIds.add(String.valueOf(roomId));
+        }
+        return roomIds.toString();
+    }
+
+    /**
+     * Whether the availability can be read from the calendar instead of being asked
+     * from the Booking service. Before the calendar has been synced, it does not
+     * know the bookings made before the events started, so the Booking service is
+     * asked. The same goes for periods too long for the calendar, and for periods
+     * starting before today, of which the calendar has dropped the bookings.
+     */
+    private boolean useCalendar(LocalDateTime startsAt, LocalDateTime endsAt) {
+        return CALENDAR.equals(availabilitySource) && roomCalendar.isSynced()
+                && roomCalendar.accepts(startsAt, endsAt) && roomCalendar.covers(startsAt);
+    }
+
+    private AvailableRooms selectFreeRooms(List<Integer> roomIds, LocalDateTime startsAt,
+                                           LocalDateTime endsAt) {
+        AvailableRooms freeIds = new AvailableRooms();
+        for (int roomId : roomIds) {
+            if (roomCalendar.isFree(roomId, startsAt, endsAt)) {
+                freeIds.add(roomId);
+            }
+        }
+        return freeIds;
+    }
+
+    private <T> List<Integer> roomIdList(List<T> listRooms, ToIntFunction<T> roomId) {
+        List<Integer> ids = new ArrayList<>(listRooms.size());
+        for (T room : listRooms) {
+            ids.add(roomId.applyAsInt(room));
+        }
+        return ids;
+    }
+
+    private AvailableRooms roomIds(List<Room> listRooms) {
+        AvailableRooms ids = new AvailableRooms();
         for (Room room : listRooms) {
-            roomIds += room.getId() + ",";
-        }
-        if (roomIds.length() > 0) {
-            roomIds = roomIds.substring(0, roomIds.length() - 1);
-        }
-        String filterUrl = "http://localhost:8082/available/multiple/" + roomIds;
-
-        // Add parameters to the request
-        Map<String, String> params = new HashMap<>();
-        params.put("startsAt", startsAt.toString());
-        params.put("endsAt", endsAt.toString());
-
-        // Make call to Booking service endpoint for checking availability
-        ResponseEntity<String> response =
-                restTemplate.getForEntity(filterUrl, String.class, params);
-        String responseIds = response.getBody();
-
-        // Convert the response back to a list of IDs
-        int cutOffStart = "{availableRooms=[".length();
-        int cutOffEnd = responseIds.length() - 2;
-        String textIdList = responseIds.substring(cutOffStart, cutOffEnd);
-        List<Integer> idList = new ArrayList<>();
-        // PMD does not recognize the Scanner.close() method (6 lines down),
-        // and therefore thinks the Scanner remains open
-        Scanner scanner = new Scanner(textIdList).useDelimiter(", "); // NOPMD
-        while (scanner.hasNext()) {
-            idList.add(Integer.valueOf(scanner.next()));
-        }
-        scanner.close();
-
-        // Retrieve available rooms from database by ID
-        for (Integer id : idList) {
-            availableRooms.add(roomRepository.findRoomById(id));
+            ids.add(room.getId());
+        }
+        return ids;
+    }
+
+    private List<Room> selectAvailableRooms(List<Room> listRooms, AvailableRooms availableIds) {
+        return selectAvailableRooms(listRooms, Room::getId, availableIds);
+    }
+
+    private <T> List<T> selectAvailableRooms(List<T> listRooms, ToIntFunction<T> roomId,
+                                             AvailableRooms availableIds) {
+        // Keep the rooms that were already loaded, instead of querying
+        // the database once for every available ID
+        List<T> availableRooms = new ArrayList<>();
+        for (T room : listRooms) {
+            if (availableIds.contains(roomId.applyAsInt(room))) {
+                availableRooms.add(room);
+            }
         }
         return availableRooms;
     }
@@ -0,0 +1,517 @@
+package nl.tudelft.sem.roomapp.services;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnitUtil;
+import nl.tudelft.sem.roomapp.models.Building;
+import nl.tudelft.sem.roomapp.models.Equipment;
+import nl.tudelft.sem.roomapp.models.Room;
+import nl.tudelft.sem.roomapp.repository.BuildingRepository;
+import nl.tudelft.sem.roomapp.repository.EquipmentRepository;
+import nl.tudelft.sem.roomapp.repository.RoomCriteriaQuery;
+import nl.tudelft.sem.roomapp.repository.RoomRepository;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostCommitDeleteEventListener;
+import org.hibernate.event.spi.PostCommitInsertEventListener;
+import org.hibernate.event.spi.PostCommitUpdateEventListener;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.persister.entity.EntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * In-memory read side of the room search. When the index is enabled
+ * (search.mode=index), all rooms are held in memory: the room IDs per
+ * capacity in capacity order, the buildings with their opening hours and
+ * the rooms of every building, and the rooms with every piece of equipment,
+ * all as bit sets indexed by room ID. Every combination of criteria is then
+ * answered with a few bit set operations and no database query. The index is
+ * loaded on the first search and every committed insert, update or delete of
+ * a room or piece of equipment is applied to it. A changed building reloads
+ * the index on the next search, because the loaded rooms still refer to the
+ * old building. Writes that bypass Hibernate, such as bulk updates, are not seen.
+ *
+ * <p>With search.mode=database every search is passed on to the database.
+ * The query is composed from the given criteria only (search.query=criteria)
+ * or is the repository query (search.query=repository).
+ */
+@Service
+public class RoomSearchIndex {
+
+    @Autowired
+    private transient RoomRepository roomRepository;
+    @Autowired
+    private transient BuildingRepository buildingRepository;
+    @Autowired
+    private transient EquipmentRepository equipmentRepository;
+    @Autowired
+    private transient RoomCriteriaQuery roomCriteriaQuery;
+    @Autowired
+    private transient EntityManagerFactory entityManagerFactory;
+
+    @Value("${search.mode:database}")
+    private transient String mode;
+    @Value("${search.query:criteria}")
+    private transient String query;
+
+    private final transient ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final transient AtomicLong version = new AtomicLong();
+
+    // Guarded by the lock, and only valid while loaded is true
+    private transient boolean loaded;
+    private final transient BitSet allRooms = new BitSet();
+    private final transient Map<Integer, IndexedRoom> rooms = new HashMap<>();
+    private final transient NavigableMap<Integer, BitSet> roomsByCapacity = new TreeMap<>();
+    private final transient Map<Object, IndexedBuilding> buildings = new HashMap<>();
+    private final transient Map<String, BitSet> roomsByEquipment = new HashMap<>();
+    private final transient Map<Object, Piece> pieces = new HashMap<>();
+    // The number of pieces of equipment with the same name in the same room
+    private final transient Map<Piece, Integer> pieceCounts = new HashMap<>();
+
+    /**
+     * Listen to committed writes of rooms, buildings and equipment,
+     * so the index never answers with outdated rooms.
+     */
+    @PostConstruct
+    void registerListeners() {
+        EntityWriteListener listener = new EntityWriteListener();
+        EventListenerRegistry registry = entityManagerFactory
+                .unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_COMMIT_INSERT, listener);
+        registry.appendListeners(EventType.POST_COMMIT_UPDATE, listener);
+        registry.appendListeners(EventType.POST_COMMIT_DELETE, listener);
+    }
+
+    /**
+     * Get the rooms that meet the given criteria, from the index
+     * if it is enabled and from the database otherwise.
+     *
+     * @param capacity          the desired capacity of the room
+     * @param buildingName      the name of the desired building
+     * @param start             start time of the desired time slot
+     * @param end               end time of the desired time slot
+     * @param equipment         desired equipment available in the room
+     * @param equipmentListSize the number of desired pieces of equipment
+     * @return the rooms that meet the given criteria, ordered by ID
+     */
+    public List<Room> getAllByAllCriteria(Integer capacity, String buildingName,
+                                          LocalTime start, LocalTime end,
+                                          List<String> equipment, long equipmentListSize) {
+        if (!isEnabled()) {
+            return query(capacity, buildingName, start, end, equipment, equipmentListSize);
+        }
+
+        return withIndex(() -> select(matching(capacity, buildingName, start, end, equipment),
+                0, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Get one page of the rooms that meet the given criteria, from the index
+     * if it is enabled and from the database otherwise.
+     *
+     * @param capacity     the desired capacity of the room
+     * @param buildingName the name of the desired building
+     * @param start        start time of the desired time slot
+     * @param end          end time of the desired time slot
+     * @param equipment    desired equipment available in the room
+     * @param after        only rooms with a larger ID are returned, or null for the first page
+     * @param limit        the maximum number of rooms to return
+     * @return the rooms on the page, ordered by ID
+     */
+    public List<Room> getPageByAllCriteria(Integer capacity, String buildingName,
+                                           LocalTime start, LocalTime end,
+                                           List<String> equipment, Integer after, int limit) {
+        if (!isEnabled()) {
+            return roomCriteriaQuery.getPageByAllCriteria(capacity, buildingName,
+                    start, end, equipment, after, limit);
+        }
+        if (after != null && after == Integer.MAX_VALUE) {
+            // No room has a larger ID
+            return Collections.emptyList();
+        }
+        return withIndex(() -> select(matching(capacity, buildingName, start, end, equipment),
+                after == null ? 0 : after + 1, limit));
+    }
+
+    /**
+     * Pass the rooms that meet the given criteria on in chunks, from the index
+     * if it is enabled and through a database cursor otherwise. The index only
+     * collects one chunk at a time, and does not hold its lock while the
+     * consumer handles it.
+     *
+     * @param capacity     the desired capacity of the room
+     * @param buildingName the name of the desired building
+     * @param start        start time of the desired time slot
+     * @param end          end time of the desired time slot
+     * @param equipment    desired equipment available in the room
+     * @param chunkSize    the number of rooms in a chunk
+     * @param consumer     receives every chunk of rooms, ordered by ID
+     * @return the number of rooms that meet the criteria
+     */
+    public int scrollByAllCriteria(Integer capacity, String buildingName,
+                                   LocalTime start, LocalTime end, List<String> equipment,
+                                   int chunkSize, Consumer<List<Room>> consumer) {
+        if (!isEnabled()) {
+            return roomCriteriaQuery.scrollByAllCriteria(capacity, buildingName,
+                    start, end, equipment, chunkSize, consumer);
+        }
+        BitSet selected = withIndex(() -> matching(capacity, buildingName, start, end,
+                equipment));
+        int count = 0;
+        int from = 0;
+        while (from >= 0) {
+            int chunkFrom = from;
+            List<Room> chunk = withIndex(() -> select(selected, chunkFrom, chunkSize));
+            if (chunk.isEmpty()) {
+                break;
+            }
+            consumer.accept(chunk);
+            count += chunk.size();
+            int last = chunk.get(chunk.size() - 1).getId();
+            from = last == Integer.MAX_VALUE ? -1 : selected.nextSetBit(last + 1);
+        }
+        return count;
+    }
+
+    /**
+     * Read from the index, and load it first if it is not loaded.
+     */
+    private <T> T withIndex(Supplier<T> reader) {
+        lock.readLock().lock();
+        try {
+            if (loaded) {
+                return reader.get();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            if (!loaded) {
+                load();
+            }
+            return reader.get();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private List<Room> query(Integer capacity, String buildingName, LocalTime start,
+                             LocalTime end, List<String> equipment, long equipmentListSize) {
+        if ("repository".equals(query)) {
+            return roomRepository.getAllByAllCriteria(capacity, buildingName,
+                    start, end, equipment, equipmentListSize);
+        }
+        return roomCriteriaQuery.getAllByAllCriteria(capacity, buildingName,
+                start, end, equipment);
+    }
+
+    public boolean isEnabled() {
+        return "index".equals(mode);
+    }
+
+    /**
+     * Get the number of committed writes of rooms, buildings and equipment
+     * since the application started.
+     *
+     * @return the current version of the room data
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Combine the bit sets of the given criteria. A null criterion is not checked.
+     */
+    private BitSet matching(Integer capacity, String buildingName, LocalTime start,
+                            LocalTime end, List<String> equipment) {
+        BitSet selected = (BitSet) allRooms.clone();
+        if (capacity != null) {
+            BitSet largeEnough = new BitSet();
+            for (BitSet ids : roomsByCapacity.tailMap(capacity, true).values()) {
+                largeEnough.or(ids);
+            }
+            selected.and(largeEnough);
+        }
+        if (buildingName != null || start != null || end != null) {
+            BitSet inOpenBuilding = new BitSet();
+            for (IndexedBuilding building : buildings.values()) {
+                if (building.matches(buildingName, start, end)) {
+                    inOpenBuilding.or(building.rooms);
+                }
+            }
+            selected.and(inOpenBuilding);
+        }
+        if (equipment != null) {
+            for (String name : equipment) {
+                BitSet withEquipment = roomsByEquipment.get(name);
+                if (withEquipment == null) {
+                    return new BitSet();
+                }
+                selected.and(withEquipment);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Get at most limit of the selected rooms, from the given ID onwards.
+     */
+    private List<Room> select(BitSet selected, int from, int limit) {
+        List<Room> selectedRooms = new ArrayList<>();
+        for (int id = selected.nextSetBit(from); id >= 0 && selectedRooms.size() < limit;
+                id = selected.nextSetBit(id + 1)) {
+            // A room removed after it was selected is skipped
+            IndexedRoom indexed = rooms.get(id);
+            if (indexed != null) {
+                selectedRooms.add(indexed.room);
+            }
+        }
+        return selectedRooms;
+    }
+
+    /**
+     * Load all rooms, buildings and equipment. Must be called with the write lock.
+     */
+    private void load() {
+        clearIndex();
+        for (Building building : buildingRepository.findAll()) {
+            putBuilding(identifier(building), building);
+        }
+        for (Room room : roomRepository.findAll()) {
+            putRoom(room);
+        }
+        for (Equipment piece : equipmentRepository.findAll()) {
+            putPiece(identifier(piece), piece);
+        }
+        loaded = true;
+    }
+
+    private void clearIndex() {
+        allRooms.clear();
+        rooms.clear();
+        roomsByCapacity.clear();
+        buildings.clear();
+        roomsByEquipment.clear();
+        pieces.clear();
+        pieceCounts.clear();
+    }
+
+    private void putBuilding(Object id, Building building) {
+        IndexedBuilding indexed = new IndexedBuilding(building.getName(),
+                building.getOpeningTime(), building.getClosingTime());
+        IndexedBuilding previous = buildings.put(id, indexed);
+        if (previous != null) {
+            indexed.rooms.or(previous.rooms);
+        }
+    }
+
+    private void putRoom(Room room) {
+        removeRoom(room.getId());
+        IndexedBuilding building = buildings.get(identifier(room.getBuilding()));
+        if (building == null) {
+            // The building was written without this index seeing it
+            loaded = false;
+            return;
+        }
+        IndexedRoom indexed = new IndexedRoom(room, identifier(room.getBuilding()));
+        rooms.put(room.getId(), indexed);
+        allRooms.set(room.getId());
+        roomsByCapacity.computeIfAbsent(indexed.capacity, c -> new BitSet()).set(room.getId());
+        building.rooms.set(room.getId());
+    }
+
+    private void removeRoom(int id) {
+        IndexedRoom indexed = rooms.remove(id);
+        if (indexed == null) {
+            return;
+        }
+        allRooms.clear(id);
+        BitSet sameCapacity = roomsByCapacity.get(indexed.capacity);
+        sameCapacity.clear(id);
+        if (sameCapacity.isEmpty()) {
+            roomsByCapacity.remove(indexed.capacity);
+        }
+        IndexedBuilding building = buildings.get(indexed.buildingId);
+        if (building != null) {
+            building.rooms.clear(id);
+        }
+    }
+
+    private void putPiece(Object id, Equipment equipment) {
+        removePiece(id);
+        Piece piece = new Piece(equipment.getRoom().getId(), equipment.getName());
+        pieces.put(id, piece);
+        pieceCounts.merge(piece, 1, Integer::sum);
+        roomsByEquipment.computeIfAbsent(piece.name, name -> new BitSet()).set(piece.roomId);
+    }
+
+    private void removePiece(Object id) {
+        Piece piece = pieces.remove(id);
+        if (piece == null) {
+            return;
+        }
+        // The room may have another piece of equipment with the same name
+        if (pieceCounts.computeIfPresent(piece, (same, count) -> count == 1 ? null : count - 1)
+                != null) {
+            return;
+        }
+        BitSet withEquipment = roomsByEquipment.get(piece.name);
+        withEquipment.clear(piece.roomId);
+        if (withEquipment.isEmpty()) {
+            roomsByEquipment.remove(piece.name);
+        }
+    }
+
+    private Object identifier(Object entity) {
+        PersistenceUnitUtil util = entityManagerFactory.getPersistenceUnitUtil();
+        return util.getIdentifier(entity);
+    }
+
+    private void onWrite(Object entity, Serializable id, boolean deleted) {
+        if (!(entity instanceof Room || entity instanceof Building
+                || entity instanceof Equipment)) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (!loaded) {
+                // The next search loads everything that has been committed
+                return;
+            }
+            if (entity instanceof Building) {
+                loaded = false;
+            } else if (entity instanceof Room) {
+                if (deleted) {
+                    removeRoom(((Room) entity).getId());
+                } else {
+                    putRoom((Room) entity);
+                }
+            } else if (deleted) {
+                removePiece(id);
+            } else {
+                putPiece(id, (Equipment) entity);
+            }
+        } finally {
+            // Bumped after the write, so a new version never comes with the old rooms
+            version.incrementAndGet();
+            lock.writeLock().unlock();
+        }
+    }
+
+    private final class EntityWriteListener implements PostCommitInsertEventListener,
+            PostCommitUpdateEventListener, PostCommitDeleteEventListener {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void onPostInsert(PostInsertEvent event) {
+            onWrite(event.getEntity(), event.getId(), false);
+        }
+
+        @Override
+        public void onPostInsertCommitFailed(PostInsertEvent event) {
+            // Nothing was written
+        }
+
+        @Override
+        public void onPostUpdate(PostUpdateEvent event) {
+            onWrite(event.getEntity(), event.getId(), false);
+        }
+
+        @Override
+        public void onPostUpdateCommitFailed(PostUpdateEvent event) {
+            // Nothing was written
+        }
+
+        @Override
+        public void onPostDelete(PostDeleteEvent event) {
+            onWrite(event.getEntity(), event.getId(), true);
+        }
+
+        @Override
+        public void onPostDeleteCommitFailed(PostDeleteEvent event) {
+            // Nothing was written
+        }
+
+        @Override
+        public boolean requiresPostCommitHanding(EntityPersister persister) {
+            return true;
+        }
+    }
+
+    private static final class IndexedRoom {
+        private final transient Room room;
+        private final transient int capacity;
+        private final transient Object buildingId;
+
+        private IndexedRoom(Room room, Object buildingId) {
+            this.room = room;
+            this.capacity = room.getCapacity();
+            this.buildingId = buildingId;
+        }
+    }
+
+    private static final class IndexedBuilding {
+        private final transient String name;
+        private final transient LocalTime openingTime;
+        private final transient LocalTime closingTime;
+        private final transient BitSet rooms = new BitSet();
+
+        private IndexedBuilding(String name, LocalTime openingTime, LocalTime closingTime) {
+            this.name = name;
+            this.openingTime = openingTime;
+            this.closingTime = closingTime;
+        }
+
+        private boolean matches(String buildingName, LocalTime start, LocalTime end) {
+            return (buildingName == null || buildingName.equals(name))
+                    && (start == null || !openingTime.isAfter(start))
+                    && (end == null || !closingTime.isBefore(end));
+        }
+    }
+
+    private static final class Piece {
+        private final transient int roomId;
+        private final transient String name;
+
+        private Piece(int roomId, String name) {
+            this.roomId = roomId;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Piece)) {
+                return false;
+            }
+            Piece other = (Piece) o;
+            return roomId == other.roomId && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return roomId * 31 + name.hashCode();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package nl.tudelft.sem.roomapp.models;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A projection of a room on the fields asked for with fields=, read from
+ * the database without loading the room entity or its building. The ID is
+ * always read, the fields that were not asked for are left null and are not
+ * serialized.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class RoomView {
+
+    public static final String ID = "id";
+    public static final String NAME = "name";
+    public static final String CAPACITY = "capacity";
+    public static final String BUILDING_NAME = "buildingName";
+    public static final List<String> FIELDS = Collections.unmodifiableList(
+            Arrays.asList(ID, NAME, CAPACITY, BUILDING_NAME));
+
+    private int id;
+    private String name;
+    private Integer capacity;
+    private String buildingName;
+
+    public RoomView() {
+    }
+
+    /**
+     * Create a room projection.
+     *
+     * @param id           the ID of the room
+     * @param name         the name of the room, or null if it was not asked for
+     * @param capacity     the capacity of the room, or null if it was not asked for
+     * @param buildingName the name of the building, or null if it was not asked for
+     */
+    public RoomView(int id, String name, Integer capacity, String buildingName) {
+        this.id = id;
+        this.name = name;
+        this.capacity = capacity;
+        this.buildingName = buildingName;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Integer getCapacity() {
+        return capacity;
+    }
+
+    public String getBuildingName() {
+        return buildingName;
+    }
+}
@@ -0,0 +1,81 @@
+package nl.tudelft.sem.roomapp.models;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * One query of a bulk room search: the same criteria as /search/all-criteria.
+ */
+public class SearchQuery {
+
+    private Integer capacity;
+    private String buildingName;
+    private LocalDateTime startsAt;
+    private LocalDateTime endsAt;
+    private List<String> equipment;
+
+    public SearchQuery() {
+    }
+
+    /**
+     * Create a search query.
+     *
+     * @param capacity     the desired capacity of the room
+     * @param buildingName the name of the desired building
+     * @param startsAt     start time of the desired time slot
+     * @param endsAt       end time of the desired time slot
+     * @param equipment    desired equipment available in the room
+     */
+    public SearchQuery(Integer capacity, String buildingName, LocalDateTime startsAt,
+                       LocalDateTime endsAt, List<String> equipment) {
+        this.capacity = capacity;
+        this.buildingName = buildingName;
+        this.startsAt = startsAt;
+        this.endsAt = endsAt;
+        this.equipment = equipment;
+    }
+
+    public Integer getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(Integer capacity) {
+        this.capacity = capacity;
+    }
+
+    public String getBuildingName() {
+        return buildingName;
+    }
+
+    public void setBuildingName(String buildingName) {
+        this.buildingName = buildingName;
+    }
+
+    public LocalDateTime getStartsAt() {
+        return startsAt;
+    }
+
+    public void setStartsAt(LocalDateTime startsAt) {
+        this.startsAt = startsAt;
+    }
+
+    public LocalDateTime getEndsAt() {
+        return endsAt;
+    }
+
+    public void setEndsAt(LocalDateTime endsAt) {
+        this.endsAt = endsAt;
+    }
+
+    public List<String> getEquipment() {
+        return equipment;
+    }
+
+    public void setEquipment(List<String> equipment) {
+        this.equipment = equipment;
+    }
+
+    public boolean hasTimeSlot() {
+        return startsAt != null && endsAt != null;
+    }
+}
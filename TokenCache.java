@@ -0,0 +1,194 @@
+package nl.tudelft.sem.roomapp.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Bounded in-memory cache of the tokens accepted by a validator, such as the
+ * AdminValidator chain, so a request does not pay for the calls of the validator
+ * to the User service every time it is authenticated. An entry lives until the
+ * token expires, but never longer than a configurable time to live, and the least
+ * recently used entries are evicted when the cache is full. Concurrent requests
+ * with the same uncached token share a single run of the validator. Every
+ * validator caches its tokens under its own scope, so a token accepted by one
+ * validator is not taken as accepted by another.
+ */
+@Service
+public class TokenCache {
+
+    private final transient long timeToLiveMillis;
+    private final transient int maxSize;
+    private final transient Map<String, Entry> entries;
+    private final transient Map<String, CompletableFuture<Boolean>> loading =
+            new ConcurrentHashMap<>();
+
+    @Autowired
+    private transient ObjectMapper objectMapper;
+
+    private transient long hits;
+    private transient long misses;
+    private transient long loads;
+    private transient long evictions;
+
+    /**
+     * Create a new token cache.
+     *
+     * @param timeToLiveSeconds the maximum number of seconds an entry stays valid
+     * @param maxSize           the maximum number of entries kept in the cache
+     */
+    public TokenCache(
+            @Value("${auth.cache.ttl-seconds:300}") long timeToLiveSeconds,
+            @Value("${auth.cache.max-size:10000}") int maxSize) {
+        this.timeToLiveMillis = timeToLiveSeconds * 1000;
+        this.maxSize = maxSize;
+        // An access ordered map keeps the least recently used entry first
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > TokenCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Validate a token, running the validator only if the token is not cached
+     * under the given scope. A token that is rejected, or that has expired,
+     * is not cached.
+     *
+     * @param scope     the name of the validator, such as "admin"
+     * @param token     the token sent by the client, without the "Bearer " prefix
+     * @param validator decides whether the token is accepted
+     * @return true if the token is accepted
+     */
+    public boolean validate(String scope, String token, Predicate<String> validator) {
+        long expiresAt = expiryOf(token);
+        if (expiresAt != 0 && expiresAt <= System.currentTimeMillis()) {
+            return false;
+        }
+        String key = scope + ' ' + token;
+        if (lookUp(key)) {
+            return true;
+        }
+
+        CompletableFuture<Boolean> own = new CompletableFuture<>();
+        CompletableFuture<Boolean> other = loading.putIfAbsent(key, own);
+        if (other != null) {
+            // Another request is already validating this token
+            try {
+                return other.join();
+            } catch (CompletionException e) {
+                throw (RuntimeException) e.getCause();
+            }
+        }
+        try {
+            // The token may have been stored just before this request started loading
+            boolean accepted = lookUp(key);
+            if (!accepted) {
+                synchronized (this) {
+                    loads++;
+                }
+                accepted = validator.test(token);
+                if (accepted) {
+                    store(key, expiresAt);
+                }
+            }
+            own.complete(accepted);
+            return accepted;
+        } catch (RuntimeException e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, own);
+        }
+    }
+
+    /**
+     * Remove all cached tokens.
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * Get the hit, miss, load and eviction counters and the current size of the cache.
+     *
+     * @return a map from the name of each statistic to its value
+     */
+    public synchronized Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new HashMap<>();
+        statistics.put("hits", hits);
+        statistics.put("misses", misses);
+        statistics.put("loads", loads);
+        statistics.put("evictions", evictions);
+        statistics.put("size", (long) entries.size());
+        return statistics;
+    }
+
+    private synchronized boolean lookUp(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.expiresAt < System.currentTimeMillis()) {
+            if (entry != null) {
+                entries.remove(key);
+            }
+            misses++;
+            return false;
+        }
+        hits++;
+        return true;
+    }
+
+    private synchronized void store(String key, long tokenExpiresAt) {
+        long expiresAt = System.currentTimeMillis() + timeToLiveMillis;
+        if (tokenExpiresAt != 0) {
+            expiresAt = Math.min(expiresAt, tokenExpiresAt);
+        }
+        entries.put(key, new Entry(expiresAt));
+    }
+
+    /**
+     * Read the expiry of a JSON web token, without checking its signature.
+     *
+     * @return the epoch millisecond at which the token expires, or 0 if unknown
+     */
+    private long expiryOf(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) {
+            return 0;
+        }
+        try {
+            byte[] payload = Base64.getUrlDecoder().decode(parts[1]);
+            JsonNode exp = objectMapper.readTree(new String(payload, StandardCharsets.UTF_8))
+                    .path("exp");
+            return exp.canConvertToLong() ? exp.asLong() * 1000 : 0;
+        } catch (IllegalArgumentException | IOException e) {
+            return 0;
+        }
+    }
+
+    private static final class Entry {
+        private final transient long expiresAt;
+
+        private Entry(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package nl.tudelft.sem.roomapp.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import nl.tudelft.sem.roomapp.models.AvailableRooms;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares decoding a Booking service response with the streaming
+ * {@link AvailableRooms} decoder to the Scanner based parser it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvailableRoomsBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    private transient int roomCount;
+
+    private transient String response;
+    private transient byte[] responseBytes;
+
+    /**
+     * Build a response of the Booking service containing roomCount IDs.
+     */
+    @Setup
+    public void createResponse() {
+        StringBuilder builder = new StringBuilder("{availableRooms=[");
+        for (int id = 1; id <= roomCount; id++) {
+            if (id > 1) {
+                builder.append(", ");
+            }
+            builder.append(id);
+        }
+        response = builder.append("]}").toString();
+        responseBytes = response.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public AvailableRooms streamingDecoder() {
+        return AvailableRooms.parse(responseBytes);
+    }
+
+    /**
+     * The parser that was used by RoomSearchController before the streaming decoder.
+     *
+     * @return the parsed IDs
+     */
+    @Benchmark
+    public List<Integer> scannerParser() {
+        int cutOffStart = "{availableRooms=[".length();
+        int cutOffEnd = response.length() - 2;
+        String textIdList = response.substring(cutOffStart, cutOffEnd);
+        List<Integer> idList = new ArrayList<>();
+        Scanner scanner = new Scanner(textIdList).useDelimiter(", "); // NOPMD
+        while (scanner.hasNext()) {
+            idList.add(Integer.valueOf(scanner.next()));
+        }
+        scanner.close();
+        return idList;
+    }
+}
@@ -0,0 +1,77 @@
+package nl.tudelft.sem.roomapp.benchmark;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import java.util.concurrent.TimeUnit;
+import nl.tudelft.sem.roomapp.config.HttpClientConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Compares the requests per second to a WireMock stand-in for the Booking
+ * service of the default RestTemplate, which opens a new connection for every
+ * request, with the pooled RestTemplate of {@link HttpClientConfiguration}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class HttpClientBenchmark {
+
+    @Param({"default", "pooled"})
+    private transient String client;
+
+    private transient WireMockServer bookingMockServer;
+    private transient String bookingUrl;
+    private transient RestTemplate restTemplate;
+
+    /**
+     * Start the Booking service stub on a free port and create the client under test.
+     */
+    @Setup(Level.Trial)
+    public void startBookingService() {
+        bookingMockServer = new WireMockServer(WireMockConfiguration.options().dynamicPort());
+        bookingMockServer.start();
+        bookingUrl = "http://localhost:" + bookingMockServer.port();
+        bookingMockServer.stubFor(WireMock.get(urlPathMatching("/available/multiple/.*"))
+                .willReturn(okJson("{availableRooms=[1, 2, 3]}")));
+
+        if ("pooled".equals(client)) {
+            restTemplate = new HttpClientConfiguration().restTemplate(bookingUrl,
+                    200, 20, 50, 1000, 2000, true);
+        } else {
+            restTemplate = new RestTemplate();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopBookingService() {
+        bookingMockServer.stop();
+    }
+
+    @Benchmark
+    public String availabilityRequest() {
+        return restTemplate.getForObject(bookingUrl + "/available/multiple/1,2,3",
+                String.class);
+    }
+}
@@ -0,0 +1,101 @@
+package nl.tudelft.sem.roomapp.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import nl.tudelft.sem.roomapp.models.Building;
+import nl.tudelft.sem.roomapp.models.Room;
+import nl.tudelft.sem.roomapp.models.RoomView;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the serialization time of a room search response as full rooms
+ * in JSON, the current format, with a projection on the ID, name and capacity
+ * in JSON, CBOR and Smile. The size of every payload is appended to
+ * response-format-sizes.txt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseFormatBenchmark {
+
+    private static final String SIZE_FILE = "response-format-sizes.txt";
+
+    @Param({"100", "1000"})
+    private transient int rooms;
+
+    @Param({"json-rooms", "json-fields", "cbor-fields", "smile-fields"})
+    private transient String format;
+
+    private transient ObjectMapper objectMapper;
+    private transient Map<String, Object> response;
+
+    /**
+     * Generate the response and write the size of its payload.
+     *
+     * @throws IOException if the size cannot be written
+     */
+    @Setup(Level.Trial)
+    public void generateResponse() throws IOException {
+        if (format.startsWith("cbor")) {
+            objectMapper = new ObjectMapper(new CBORFactory());
+        } else if (format.startsWith("smile")) {
+            objectMapper = new ObjectMapper(new SmileFactory());
+        } else {
+            objectMapper = new ObjectMapper();
+        }
+        objectMapper.findAndRegisterModules();
+
+        Random random = new Random(42);
+        Building building = new Building("building0", LocalTime.of(8, 0), LocalTime.of(18, 0));
+        List<Object> results = new ArrayList<>();
+        for (int i = 0; i < rooms; i++) {
+            Room room = new Room("room0-" + i, 1 + random.nextInt(200), building);
+            if (format.endsWith("rooms")) {
+                results.add(room);
+            } else {
+                results.add(new RoomView(i, room.getName(), room.getCapacity(), null));
+            }
+        }
+        response = new HashMap<>();
+        response.put("rooms", results);
+
+        Files.write(Paths.get(SIZE_FILE),
+                Collections.singletonList(format + ", " + rooms + " rooms: "
+                        + serialize().length + " bytes"),
+                StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(response);
+    }
+}
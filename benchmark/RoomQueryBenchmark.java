@@ -0,0 +1,170 @@
+package nl.tudelft.sem.roomapp.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import nl.tudelft.sem.roomapp.models.Room;
+import nl.tudelft.sem.roomapp.repository.BuildingRepository;
+import nl.tudelft.sem.roomapp.repository.EquipmentRepository;
+import nl.tudelft.sem.roomapp.repository.RoomRepository;
+import nl.tudelft.sem.roomapp.services.RoomSearchIndex;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.context.AnnotatedClassFinder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Compares the latency of the repository query and the composed criteria query
+ * of the room search on a generated database of 100,000 rooms, for every
+ * combination of filters. The SQL of every combination and the plan the
+ * database chooses for it are appended to room-query-plans.txt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomQueryBenchmark {
+
+    private static final String PLAN_FILE = "room-query-plans.txt";
+
+    @Param({"1000"})
+    private transient int buildings;
+
+    @Param({"100"})
+    private transient int roomsPerBuilding;
+
+    @Param({"repository", "criteria"})
+    private transient String query;
+
+    @Param({"none", "capacity", "building", "equipment", "time", "all"})
+    private transient String filters;
+
+    private transient ConfigurableApplicationContext context;
+    private transient RoomSearchIndex roomSearchIndex;
+
+    private transient Integer capacity;
+    private transient String buildingName;
+    private transient LocalTime start;
+    private transient LocalTime end;
+    private transient List<String> equipment;
+
+    /**
+     * Start the application with the query under test, generate the data
+     * and record the query plan.
+     *
+     * @throws SQLException if the query plan cannot be read
+     * @throws IOException  if the query plan cannot be written
+     */
+    @Setup(Level.Trial)
+    public void startApplication() throws SQLException, IOException {
+        Class<?> application = new AnnotatedClassFinder(SpringBootConfiguration.class)
+                .findFromPackage("nl.tudelft.sem.roomapp");
+        context = new SpringApplicationBuilder(application)
+                .properties("server.port=0",
+                        "search.mode=database",
+                        "search.query=" + query,
+                        "spring.jpa.properties.hibernate.session_factory.statement_inspector="
+                                + SqlRecorder.class.getName())
+                .run(RoomSearchDataGenerator.inMemoryDatabase("room-query-benchmark"));
+        roomSearchIndex = context.getBean(RoomSearchIndex.class);
+
+        new RoomSearchDataGenerator(
+                context.getBean(BuildingRepository.class),
+                context.getBean(RoomRepository.class),
+                context.getBean(EquipmentRepository.class))
+                .generate(buildings, roomsPerBuilding, 42);
+
+        boolean all = "all".equals(filters);
+        capacity = all || "capacity".equals(filters) ? 100 : null;
+        buildingName = all || "building".equals(filters) ? "building0" : null;
+        start = all || "time".equals(filters) ? LocalTime.of(10, 20) : null;
+        end = all || "time".equals(filters) ? LocalTime.of(19, 40) : null;
+        equipment = all || "equipment".equals(filters)
+                ? Arrays.asList("Projector", "Microphone") : null;
+
+        // The first statement is the search, the others load the buildings of the rooms
+        SqlRecorder.STATEMENTS.clear();
+        search();
+        writeQueryPlan(SqlRecorder.STATEMENTS.get(0));
+    }
+
+    @TearDown(Level.Trial)
+    public void stopApplication() {
+        context.close();
+    }
+
+    @Benchmark
+    public List<Room> search() {
+        return roomSearchIndex.getAllByAllCriteria(capacity, buildingName, start, end,
+                equipment, equipment == null ? 0 : equipment.size());
+    }
+
+    /**
+     * Ask the database how it executes the given query. The parameters are bound
+     * to null, so the plan shows which indexes are used, not how selective they are.
+     */
+    private void writeQueryPlan(String sql) throws SQLException, IOException {
+        StringBuilder plan = new StringBuilder()
+                .append("== ").append(query).append(", filters: ").append(filters)
+                .append(System.lineSeparator()).append(sql).append(System.lineSeparator());
+        try (Connection connection = context.getBean(DataSource.class).getConnection();
+             PreparedStatement explain = connection.prepareStatement("EXPLAIN " + sql)) {
+            int parameters = explain.getParameterMetaData().getParameterCount();
+            for (int i = 1; i <= parameters; i++) {
+                explain.setObject(i, null);
+            }
+            try (ResultSet result = explain.executeQuery()) {
+                while (result.next()) {
+                    plan.append(result.getString(1)).append(System.lineSeparator());
+                }
+            }
+        }
+        Files.write(Paths.get(PLAN_FILE),
+                Collections.singletonList(plan.toString()), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Remembers the SQL statements Hibernate prepares, so their plans can be read.
+     */
+    public static class SqlRecorder implements StatementInspector {
+        private static final long serialVersionUID = 1L;
+        private static final List<String> STATEMENTS =
+                Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public String inspect(String sql) {
+            STATEMENTS.add(sql);
+            return sql;
+        }
+    }
+}
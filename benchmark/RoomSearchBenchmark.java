@@ -0,0 +1,165 @@
+package nl.tudelft.sem.roomapp.benchmark;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import nl.tudelft.sem.roomapp.repository.BuildingRepository;
+import nl.tudelft.sem.roomapp.repository.EquipmentRepository;
+import nl.tudelft.sem.roomapp.repository.RoomRepository;
+import nl.tudelft.sem.roomapp.services.AvailabilityCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.context.AnnotatedClassFinder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+/**
+ * Measures /search/all-criteria for every combination of filters covered by
+ * RoomControllerTest, against a generated database and a WireMock stand-in
+ * for the Booking service. Run {@link #main(String[])} to write the results
+ * to room-search-benchmark.json, so they can be compared between releases.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoomSearchBenchmark {
+
+    private static final String SEARCH_URL = "/search/all-criteria";
+
+    @Param({"10", "100"})
+    private transient int buildings;
+
+    @Param({"10", "50"})
+    private transient int roomsPerBuilding;
+
+    @Param({"capacity", "building", "equipment", "time", "all"})
+    private transient String filters;
+
+    private transient ConfigurableApplicationContext context;
+    private transient WireMockServer bookingMockServer;
+    private transient MockMvc mvc;
+    private transient AvailabilityCache availabilityCache;
+
+    /**
+     * Start the application and the Booking service stub, and generate the data.
+     */
+    @Setup(Level.Trial)
+    public void startApplication() {
+        bookingMockServer = new WireMockServer(options().dynamicPort());
+        bookingMockServer.start();
+
+        Class<?> application = new AnnotatedClassFinder(SpringBootConfiguration.class)
+                .findFromPackage("nl.tudelft.sem.roomapp");
+        context = new SpringApplicationBuilder(application)
+                .properties("server.port=0",
+                        "booking.url=http://localhost:" + bookingMockServer.port())
+                .run(RoomSearchDataGenerator.inMemoryDatabase("room-search-benchmark"));
+        mvc = MockMvcBuilders.webAppContextSetup((WebApplicationContext) context).build();
+        availabilityCache = context.getBean(AvailabilityCache.class);
+
+        List<Integer> roomIds = new RoomSearchDataGenerator(
+                context.getBean(BuildingRepository.class),
+                context.getBean(RoomRepository.class),
+                context.getBean(EquipmentRepository.class))
+                .generate(buildings, roomsPerBuilding, 42);
+
+        // The Booking service reports every room as available
+        StringJoiner body = new StringJoiner(", ", "{availableRooms=[", "]}");
+        for (Integer id : roomIds) {
+            body.add(String.valueOf(id));
+        }
+        bookingMockServer.stubFor(WireMock.get(urlPathMatching("/available/multiple/.*"))
+                .willReturn(okJson(body.toString())));
+    }
+
+    /**
+     * Every invocation must ask the Booking service, not the availability cache.
+     */
+    @Setup(Level.Invocation)
+    public void clearAvailabilityCache() {
+        availabilityCache.invalidateAll();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopApplication() {
+        bookingMockServer.stop();
+        context.close();
+    }
+
+    @Benchmark
+    public MvcResult search() throws Exception {
+        return mvc.perform(searchRequest()).andReturn();
+    }
+
+    private MockHttpServletRequestBuilder searchRequest() {
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1, 10, 20, 0);
+        LocalDateTime endsAt = LocalDateTime.of(2021, 12, 1, 11, 40, 0);
+        switch (filters) {
+            case "capacity":
+                return get(SEARCH_URL).param("capacity", "100");
+            case "building":
+                return get(SEARCH_URL).param("buildingName", "building0");
+            case "equipment":
+                return get(SEARCH_URL).param("equipment", "Projector");
+            case "time":
+                return get(SEARCH_URL)
+                        .param("startsAt", startsAt.toString())
+                        .param("endsAt", endsAt.toString());
+            default:
+                return get(SEARCH_URL)
+                        .param("capacity", "100")
+                        .param("buildingName", "building0")
+                        .param("startsAt", startsAt.toString())
+                        .param("endsAt", endsAt.toString())
+                        .param("equipment", "Projector");
+        }
+    }
+
+    /**
+     * Run all room search benchmarks and write the results as JSON.
+     *
+     * @param args the file to write the results to, room-search-benchmark.json by default
+     * @throws RunnerException if a benchmark fails
+     */
+    public static void main(String[] args) throws RunnerException {
+        String resultFile = args.length > 0 ? args[0] : "room-search-benchmark.json";
+        new Runner(new OptionsBuilder()
+                .include("nl.tudelft.sem.roomapp.benchmark.*")
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .build())
+                .run();
+    }
+}
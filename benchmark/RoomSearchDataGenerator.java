@@ -0,0 +1,100 @@
+package nl.tudelft.sem.roomapp.benchmark;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import nl.tudelft.sem.roomapp.models.Building;
+import nl.tudelft.sem.roomapp.models.Equipment;
+import nl.tudelft.sem.roomapp.models.Room;
+import nl.tudelft.sem.roomapp.repository.BuildingRepository;
+import nl.tudelft.sem.roomapp.repository.EquipmentRepository;
+import nl.tudelft.sem.roomapp.repository.RoomRepository;
+
+/**
+ * Fills the database with a reproducible set of buildings, rooms and equipment.
+ */
+public class RoomSearchDataGenerator {
+
+    public static final String[] EQUIPMENT = {"Computer", "Whiteboard", "Projector",
+        "Microphone", "Smartboard"};
+
+    private final transient BuildingRepository buildingRepository;
+    private final transient RoomRepository roomRepository;
+    private final transient EquipmentRepository equipmentRepository;
+
+    /**
+     * Create a generator that saves to the given repositories.
+     *
+     * @param buildingRepository  the repository for buildings
+     * @param roomRepository      the repository for rooms
+     * @param equipmentRepository the repository for equipment
+     */
+    public RoomSearchDataGenerator(BuildingRepository buildingRepository,
+                                   RoomRepository roomRepository,
+                                   EquipmentRepository equipmentRepository) {
+        this.buildingRepository = buildingRepository;
+        this.roomRepository = roomRepository;
+        this.equipmentRepository = equipmentRepository;
+    }
+
+    /**
+     * Get the command line arguments that run the application on a private
+     * in-memory database. {@link #generate} deletes all buildings, rooms and
+     * equipment, so it must never run against the configured database. Command
+     * line arguments take precedence over application.properties and the
+     * environment, unlike the default properties of a SpringApplicationBuilder.
+     *
+     * @param name the name of the in-memory database
+     * @return the arguments to run the application with
+     */
+    public static String[] inMemoryDatabase(String name) {
+        return new String[] {
+            "--spring.datasource.url=jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1",
+            "--spring.datasource.driver-class-name=org.h2.Driver",
+            "--spring.datasource.username=sa",
+            "--spring.datasource.password=",
+            "--spring.jpa.hibernate.ddl-auto=create-drop"
+        };
+    }
+
+    /**
+     * Replace the contents of the database with generated data. Building i is
+     * called "building" + i and opens at 8:00 and closes at 18:00 or later.
+     * Every room gets a capacity between 1 and 200 and between one and all
+     * pieces of equipment.
+     *
+     * @param buildings        the number of buildings to create
+     * @param roomsPerBuilding the number of rooms to create in every building
+     * @param seed             the seed of the random generator
+     * @return the IDs of all created rooms
+     */
+    public List<Integer> generate(int buildings, int roomsPerBuilding, long seed) {
+        equipmentRepository.deleteAll();
+        roomRepository.deleteAll();
+        buildingRepository.deleteAll();
+
+        Random random = new Random(seed);
+        List<Integer> roomIds = new ArrayList<>();
+        List<Equipment> equipment = new ArrayList<>();
+        for (int b = 0; b < buildings; b++) {
+            Building building = buildingRepository.save(new Building("building" + b,
+                    LocalTime.of(8, 0), LocalTime.of(18 + random.nextInt(5), 0)));
+
+            List<Room> rooms = new ArrayList<>();
+            for (int r = 0; r < roomsPerBuilding; r++) {
+                rooms.add(new Room("room" + b + "-" + r, 1 + random.nextInt(200), building));
+            }
+            for (Room room : roomRepository.saveAll(rooms)) {
+                roomIds.add(room.getId());
+                int pieces = 1 + random.nextInt(EQUIPMENT.length);
+                for (int e = 0; e < pieces; e++) {
+                    equipment.add(new Equipment(room, EQUIPMENT[e]));
+                }
+            }
+        }
+        equipmentRepository.saveAll(equipment);
+        equipmentRepository.flush();
+        return roomIds;
+    }
+}
@@ -0,0 +1,265 @@
+package nl.tudelft.sem.roomapp.benchmark;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.okJson;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.options;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.common.FileSource;
+import com.github.tomakehurst.wiremock.extension.Parameters;
+import com.github.tomakehurst.wiremock.extension.ResponseDefinitionTransformer;
+import com.github.tomakehurst.wiremock.http.Request;
+import com.github.tomakehurst.wiremock.http.ResponseDefinition;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringJoiner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import nl.tudelft.sem.roomapp.repository.BuildingRepository;
+import nl.tudelft.sem.roomapp.repository.EquipmentRepository;
+import nl.tudelft.sem.roomapp.repository.RoomRepository;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.context.AnnotatedClassFinder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Load test of /search/all-criteria. It starts the application on an embedded
+ * database seeded with generated buildings and rooms, and a WireMock stand-in
+ * for the Booking service with a configurable latency and error rate. A number
+ * of clients then send a mix of searches over HTTP. The p50 and p99 latency,
+ * the throughput and the number of failed searches are printed and written to
+ * load-test-results.json.
+ *
+ * <p>The test is configured with system properties, for example
+ * -Dloadtest.clients=32 -Dloadtest.booking-error-rate=0.05:
+ * <ul>
+ *     <li>loadtest.buildings and loadtest.rooms-per-building (100 and 50)</li>
+ *     <li>loadtest.booking-latency-ms, the median latency of the Booking service (20)</li>
+ *     <li>loadtest.booking-error-rate, the share of Booking service calls that fail (0)</li>
+ *     <li>loadtest.clients, the number of concurrent clients (16)</li>
+ *     <li>loadtest.warmup-seconds and loadtest.duration-seconds (10 and 30)</li>
+ *     <li>loadtest.port and loadtest.booking-port, 0 for any free port (0 and 0)</li>
+ * </ul>
+ * Any other property of the application, such as search.mode, is passed on as well.
+ */
+public final class RoomSearchLoadTest {
+
+    private static final String RESULT_FILE = "load-test-results.json";
+
+    private RoomSearchLoadTest() {
+    }
+
+    /**
+     * Run the load test.
+     *
+     * @param args unused, the test is configured with system properties
+     * @throws Exception if the application or the clients fail
+     */
+    public static void main(String[] args) throws Exception {
+        final int buildings = Integer.getInteger("loadtest.buildings", 100);
+        final int roomsPerBuilding = Integer.getInteger("loadtest.rooms-per-building", 50);
+        final int latency = Integer.getInteger("loadtest.booking-latency-ms", 20);
+        final double errorRate = Double.parseDouble(
+                System.getProperty("loadtest.booking-error-rate", "0"));
+        final int clients = Integer.getInteger("loadtest.clients", 16);
+        final int warmup = Integer.getInteger("loadtest.warmup-seconds", 10);
+        final int duration = Integer.getInteger("loadtest.duration-seconds", 30);
+
+        WireMockServer bookingMockServer = new WireMockServer(options()
+                .port(Integer.getInteger("loadtest.booking-port", 0))
+                .extensions(new FaultInjector(errorRate)));
+        bookingMockServer.start();
+
+        Class<?> application = new AnnotatedClassFinder(SpringBootConfiguration.class)
+                .findFromPackage("nl.tudelft.sem.roomapp");
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(application)
+                .properties("server.port=" + Integer.getInteger("loadtest.port", 0),
+                        "booking.url=http://localhost:" + bookingMockServer.port())
+                .run(RoomSearchDataGenerator.inMemoryDatabase("room-search-load-test"));
+        try {
+            List<Integer> roomIds = new RoomSearchDataGenerator(
+                    context.getBean(BuildingRepository.class),
+                    context.getBean(RoomRepository.class),
+                    context.getBean(EquipmentRepository.class))
+                    .generate(buildings, roomsPerBuilding, 42);
+
+            // The Booking service reports every room as available
+            StringJoiner body = new StringJoiner(", ", "{availableRooms=[", "]}");
+            for (Integer id : roomIds) {
+                body.add(String.valueOf(id));
+            }
+            bookingMockServer.stubFor(WireMock.get(urlPathMatching("/available/multiple/.*"))
+                    .willReturn(okJson(body.toString())
+                            .withLogNormalRandomDelay(latency, 0.25)));
+
+            String searchUrl = "http://localhost:"
+                    + context.getEnvironment().getProperty("local.server.port")
+                    + "/search/all-criteria";
+            HttpClient httpClient = HttpClient.newHttpClient();
+            run(httpClient, searchUrl, buildings, clients, warmup);
+            Result result = run(httpClient, searchUrl, buildings, clients, duration);
+
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("buildings", buildings);
+            report.put("roomsPerBuilding", roomsPerBuilding);
+            report.put("bookingLatencyMs", latency);
+            report.put("bookingErrorRate", errorRate);
+            report.put("clients", clients);
+            report.put("durationSeconds", duration);
+            report.put("requests", result.latencies.length);
+            report.put("failedRequests", result.failures);
+            report.put("throughputPerSecond", (double) result.latencies.length / duration);
+            report.put("p50Ms", percentile(result.latencies, 0.50));
+            report.put("p99Ms", percentile(result.latencies, 0.99));
+            report.put("maxMs", percentile(result.latencies, 1.0));
+            ObjectMapper objectMapper = new ObjectMapper();
+            System.out.println(objectMapper.writerWithDefaultPrettyPrinter()
+                    .writeValueAsString(report));
+            objectMapper.writerWithDefaultPrettyPrinter().writeValue(new File(RESULT_FILE), report);
+        } finally {
+            context.close();
+            bookingMockServer.stop();
+        }
+    }
+
+    /**
+     * Let the clients search for the given number of seconds.
+     */
+    private static Result run(HttpClient httpClient, String searchUrl, int buildings,
+                              int clients, int seconds) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<Result>> results = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            long seed = i;
+            results.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                List<Long> latencies = new ArrayList<>();
+                int failures = 0;
+                while (System.nanoTime() < deadline) {
+                    HttpRequest request = HttpRequest.newBuilder(
+                            URI.create(searchUrl + randomQuery(random, buildings))).build();
+                    long start = System.nanoTime();
+                    try {
+                        HttpResponse<Void> response = httpClient.send(request,
+                                HttpResponse.BodyHandlers.discarding());
+                        if (response.statusCode() != 200) {
+                            failures++;
+                        }
+                    } catch (IOException e) {
+                        failures++;
+                    }
+                    latencies.add(System.nanoTime() - start);
+                }
+                return new Result(latencies.stream().mapToLong(Long::longValue).toArray(),
+                        failures);
+            }));
+        }
+        executor.shutdown();
+
+        List<long[]> latencies = new ArrayList<>();
+        int failures = 0;
+        for (Future<Result> result : results) {
+            latencies.add(result.get().latencies);
+            failures += result.get().failures;
+        }
+        long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        return new Result(all, failures);
+    }
+
+    /**
+     * A mix of searches as sent by the front end: mostly a time slot with a
+     * capacity or building, sometimes equipment, sometimes every filter.
+     */
+    private static String randomQuery(Random random, int buildings) {
+        LocalDateTime startsAt = LocalDateTime.of(2021, 12, 1 + random.nextInt(28),
+                8 + random.nextInt(9), 15 * random.nextInt(4));
+        LocalDateTime endsAt = startsAt.plusMinutes(30 + 30 * random.nextInt(4));
+        String time = "&startsAt=" + startsAt + "&endsAt=" + endsAt;
+        String capacity = "capacity=" + (1 + random.nextInt(50));
+        String building = "buildingName=building" + random.nextInt(buildings);
+        String equipment = "equipment=" + RoomSearchDataGenerator.EQUIPMENT[
+                random.nextInt(RoomSearchDataGenerator.EQUIPMENT.length)];
+
+        int mix = random.nextInt(100);
+        if (mix < 30) {
+            return "?" + capacity + time;
+        } else if (mix < 50) {
+            return "?" + building + time;
+        } else if (mix < 65) {
+            return "?" + equipment;
+        } else if (mix < 80) {
+            return "?" + capacity + "&" + building + "&" + equipment + time;
+        } else if (mix < 90) {
+            return "?" + capacity;
+        }
+        return "?" + building;
+    }
+
+    private static double percentile(long[] sortedLatencies, double percentile) {
+        if (sortedLatencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(index, 0)] / 1_000_000.0;
+    }
+
+    private static final class Result {
+        private final transient long[] latencies;
+        private final transient int failures;
+
+        private Result(long[] latencies, int failures) {
+            this.latencies = latencies;
+            this.failures = failures;
+        }
+    }
+
+    /**
+     * Lets the given share of the Booking service calls fail with 500,
+     * after the same latency as the successful calls.
+     */
+    private static final class FaultInjector extends ResponseDefinitionTransformer {
+        private final transient double errorRate;
+
+        private FaultInjector(double errorRate) {
+            this.errorRate = errorRate;
+        }
+
+        @Override
+        public ResponseDefinition transform(Request request,
+                                            ResponseDefinition responseDefinition,
+                                            FileSource files, Parameters parameters) {
+            if (ThreadLocalRandom.current().nextDouble() >= errorRate) {
+                return responseDefinition;
+            }
+            return ResponseDefinitionBuilder.like(responseDefinition)
+                    .but()
+                    .withStatus(500)
+                    .withBody("")
+                    .build();
+        }
+
+        @Override
+        public String getName() {
+            return "booking-fault-injector";
+        }
+    }
+}